@@ -0,0 +1,218 @@
+import soot.*;
+import soot.util.*;
+import java.io.*;
+import java.util.*;
+
+// benchmarks for the analysis: Hierarchy.initialize,
+// Hierarchy.virtualDispatch and ChaAnalysis.processCall, on a
+// synthetic class hierarchy. the hierarchy is built directly as
+// SootClass objects (nothing is loaded from class files), from a
+// fixed seed:
+//
+//   - a root class (standing in for java.lang.Object) that declares
+//     all SUBSIGNATURES methods
+//   - INTERFACES interfaces, some extending an earlier one, each
+//     declaring a few of the methods
+//   - CLASSES classes, each extending the root or one of the recent
+//     classes (so the superclass chains get deep), some abstract,
+//     some implementing an interface, each overriding a few methods
+//
+// and CALLS calls: virtual calls on classes, interface calls and
+// static/special calls, in the proportions of a typical program.
+
+class AnalysisBenchmarks {
+
+    static final long SEED = 42;
+    static final int CLASSES = 3000;
+    static final int INTERFACES = 150;
+    static final int SUBSIGNATURES = 40;
+    static final int CALLS = 5000;
+
+    // the fixture
+    static Chain classes;
+    static MethodSummary.Call[] calls;
+    static SootMethod caller;
+
+    // ------------------------------------------------------------
+    static List all() {
+	fixture();
+	ArrayList result = new ArrayList();
+
+	result.add(new Bench.Benchmark("Hierarchy.initialize (" +
+				       classes.size() + " classes)", 1) {
+		void run(int ops) {
+		    for (int i = 0; i < ops; i++) {
+			Hierarchy h = new Hierarchy();
+			h.initialize(classes);
+			Bench.sink += h.allClasses().size();
+		    }
+		}
+	    });
+
+	// every (subsignature, receiver class) pair that processCall
+	// dispatches for the calls of the fixture
+	final Hierarchy h = new Hierarchy();
+	h.initialize(classes);
+	ArrayList subsigs = new ArrayList();
+	ArrayList receivers = new ArrayList();
+	for (int i = 0; i < calls.length; i++) {
+	    if (calls[i].kind != MethodSummary.VIRTUAL) continue;
+	    Integer subsig = new Integer(h.subsignatureId(calls[i].target));
+	    for (Iterator it = h.possibleReceiverClasses(calls[i].receiver).iterator();
+		 it.hasNext();) {
+		subsigs.add(subsig);
+		receivers.add(it.next());
+	    }
+	}
+	final int[] dispatch_subsigs = new int[subsigs.size()];
+	final SootClass[] dispatch_receivers = new SootClass[subsigs.size()];
+	for (int i = 0; i < dispatch_subsigs.length; i++) {
+	    dispatch_subsigs[i] = ((Integer) subsigs.get(i)).intValue();
+	    dispatch_receivers[i] = (SootClass) receivers.get(i);
+	}
+
+	result.add(new Bench.Benchmark("Hierarchy.virtualDispatch", 1000000) {
+		void run(int ops) {
+		    int n = dispatch_subsigs.length;
+		    long found = 0;
+		    for (int i = 0; i < ops; i++) {
+			int k = i % n;
+			if (h.virtualDispatch(dispatch_subsigs[k],
+					      dispatch_receivers[k]) != null)
+			    found++;
+		    }
+		    Bench.sink += found;
+		}
+	    });
+
+	result.add(new Bench.Benchmark("Hierarchy.possibleReceiverClasses", 1000000) {
+		void run(int ops) {
+		    long size = 0;
+		    for (int i = 0; i < ops; i++) {
+			MethodSummary.Call call = calls[i % calls.length];
+			if (call.receiver != null)
+			    size += h.possibleReceiverClasses(call.receiver).size();
+		    }
+		    Bench.sink += size;
+		}
+	    });
+
+	// processCall without the output files: the analysis is set up
+	// as in analyze(), but no method was started in the writer, so
+	// it writes nothing. after the first iteration all targets are
+	// reachable, as for most calls in a real run.
+	final ChaAnalysis analysis = new ChaAnalysis();
+	analysis.setOutputDir(tempDir("processCall"));
+	analysis.hierarchy().initialize(classes);
+
+	final String[] site_ids = new String[calls.length];
+	for (int i = 0; i < calls.length; i++) site_ids[i] = "1_" + (i + 1);
+
+	result.add(new Bench.Benchmark("ChaAnalysis.processCall", CALLS) {
+		void run(int ops) {
+		    for (int i = 0; i < ops; i++)
+			analysis.processCall(calls[i % calls.length], caller,
+					     site_ids[i % calls.length]);
+		}
+	    });
+
+	return result;
+    }
+
+    // ------------------------------------------------------------
+    static void fixture() {
+	Random random = new Random(SEED);
+	classes = new HashChain();
+
+	SootClass root = new SootClass("bench.Root", Modifier.PUBLIC);
+	SootMethod[] root_methods = new SootMethod[SUBSIGNATURES];
+	for (int k = 0; k < SUBSIGNATURES; k++) {
+	    root_methods[k] = method(k, Modifier.PUBLIC);
+	    root.addMethod(root_methods[k]);
+	}
+	classes.add(root);
+	caller = root_methods[0];
+
+	SootClass[] interfaces = new SootClass[INTERFACES];
+	ArrayList interface_methods = new ArrayList();
+	for (int i = 0; i < INTERFACES; i++) {
+	    SootClass c = new SootClass("bench.I" + i, Modifier.PUBLIC |
+					Modifier.INTERFACE | Modifier.ABSTRACT);
+	    c.setSuperclass(root);
+	    if (i > 0 && random.nextInt(10) < 3)
+		c.addInterface(interfaces[random.nextInt(i)]);
+	    for (int k = 0; k < 3; k++) {
+		int subsig = random.nextInt(SUBSIGNATURES);
+		if (c.declaresMethod(root_methods[subsig].getSubSignature())) continue;
+		SootMethod m = method(subsig, Modifier.PUBLIC | Modifier.ABSTRACT);
+		c.addMethod(m);
+		interface_methods.add(m);
+	    }
+	    interfaces[i] = c;
+	    classes.add(c);
+	}
+
+	SootClass[] plain = new SootClass[CLASSES];
+	ArrayList concrete_methods = new ArrayList();
+	for (int i = 0; i < CLASSES; i++) {
+	    boolean is_abstract = random.nextInt(100) < 15;
+	    SootClass c = new SootClass("bench.C" + i, Modifier.PUBLIC |
+					(is_abstract ? Modifier.ABSTRACT : 0));
+	    if (i == 0 || random.nextInt(10) < 3)
+		c.setSuperclass(root);
+	    else
+		c.setSuperclass(plain[i - 1 - random.nextInt(Math.min(i, 200))]);
+	    if (random.nextInt(10) < 2)
+		c.addInterface(interfaces[random.nextInt(INTERFACES)]);
+	    for (int k = 0; k < SUBSIGNATURES; k++) {
+		if (random.nextInt(100) >= 8) continue;
+		SootMethod m = method(k, Modifier.PUBLIC);
+		c.addMethod(m);
+		concrete_methods.add(m);
+	    }
+	    plain[i] = c;
+	    classes.add(c);
+	}
+
+	// the calls: 60% virtual calls on classes, 20% interface calls
+	// and 20% static/special calls
+	calls = new MethodSummary.Call[CALLS];
+	for (int i = 0; i < CALLS; i++) {
+	    int kind = random.nextInt(10);
+	    if (kind < 6) {
+		SootClass receiver = plain[random.nextInt(CLASSES)];
+		SootMethod target = root_methods[random.nextInt(SUBSIGNATURES)];
+		calls[i] = new MethodSummary.Call
+		    (MethodSummary.VIRTUAL, "virtualinvoke " + target, target, receiver);
+	    } else if (kind < 8 && !interface_methods.isEmpty()) {
+		SootMethod target = (SootMethod)
+		    interface_methods.get(random.nextInt(interface_methods.size()));
+		calls[i] = new MethodSummary.Call
+		    (MethodSummary.VIRTUAL, "interfaceinvoke " + target, target,
+		     target.getDeclaringClass());
+	    } else {
+		SootMethod target = (SootMethod)
+		    concrete_methods.get(random.nextInt(concrete_methods.size()));
+		calls[i] = new MethodSummary.Call
+		    (MethodSummary.SIMPLE, "specialinvoke " + target, target, null);
+	    }
+	}
+    }
+
+    private static SootMethod method(int subsig, int modifiers) {
+	return new SootMethod("m" + subsig, Collections.EMPTY_LIST,
+			      VoidType.v(), modifiers);
+    }
+
+    static String tempDir(String name) {
+	try {
+	    File dir = File.createTempFile("bench-" + name, "");
+	    dir.delete();
+	    dir.mkdirs();
+	    dir.deleteOnExit();
+	    return dir.getPath();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+}
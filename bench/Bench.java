@@ -0,0 +1,102 @@
+import java.util.*;
+
+// a small benchmark harness for the hot paths of the analysis and of
+// the run-time tracker (see AnalysisBenchmarks and TrackerBenchmarks).
+// each benchmark runs a number of warm-up iterations, then a number of
+// measured iterations of a fixed number of operations each, and the
+// harness reports the mean and the spread of the time per operation.
+// the fixtures are generated from a fixed random seed, so two runs
+// measure exactly the same work.
+//
+// compile the benchmarks together with the sources, and run them with
+// Soot on the classpath:
+//
+//   javac -cp <soot classpath> -d <dir> src/*.java bench/*.java
+//   java -cp <dir>:<soot classpath> Bench [name filter]
+//
+// the number of iterations can be set with -Dbench.warmup=N and
+// -Dbench.iterations=N, and the number of threads of the contended
+// benchmarks with -Dbench.threads=N.
+
+public class Bench {
+
+    static int warmup = Integer.getInteger("bench.warmup", 5).intValue();
+    static int iterations = Integer.getInteger("bench.iterations", 10).intValue();
+    static int threads = Integer.getInteger("bench.threads",
+	Math.max(2, Runtime.getRuntime().availableProcessors())).intValue();
+
+    // results are added here, so that the JIT can't drop the work
+    // that computes them
+    static volatile long sink;
+
+    // one benchmark. setup() runs before every iteration and is not
+    // measured; run(ops) does 'ops' operations and is measured.
+    static abstract class Benchmark {
+	final String name;
+	final int ops;
+
+	Benchmark(String name, int ops) {
+	    this.name = name;
+	    this.ops = ops;
+	}
+
+	void setup() { }
+	abstract void run(int ops);
+	void teardown() { }
+    }
+
+    // ------------------------------------------------------------
+    public static void main(String[] args) throws Exception {
+	String filter = (args.length > 0) ? args[0] : "";
+
+	// the tracker must not print or log while it is measured; this
+	// has to happen before RuntimeTracker is loaded
+	System.setProperty("tracker.log", "off");
+
+	ArrayList all = new ArrayList();
+	all.addAll(AnalysisBenchmarks.all());
+	all.addAll(TrackerBenchmarks.all());
+
+	System.out.println("warm-up " + warmup + ", iterations " + iterations +
+			   ", threads " + threads);
+	for (Iterator it = all.iterator(); it.hasNext();) {
+	    Benchmark b = (Benchmark) it.next();
+	    if (b.name.indexOf(filter) != -1) measure(b);
+	}
+	TrackerBenchmarks.shutdown();
+    }
+
+    static void measure(Benchmark b) {
+	double[] ns = new double[iterations];
+	for (int i = 0; i < warmup + iterations; i++) {
+	    b.setup();
+	    long start = System.nanoTime();
+	    b.run(b.ops);
+	    long elapsed = System.nanoTime() - start;
+	    b.teardown();
+	    if (i >= warmup) ns[i - warmup] = (double) elapsed / b.ops;
+	}
+
+	double mean = 0;
+	for (int i = 0; i < ns.length; i++) mean += ns[i];
+	mean /= ns.length;
+	double var = 0;
+	for (int i = 0; i < ns.length; i++) var += (ns[i] - mean) * (ns[i] - mean);
+	double dev = (ns.length > 1) ? Math.sqrt(var / (ns.length - 1)) : 0;
+	Arrays.sort(ns);
+
+	System.out.println(pad(b.name, 56) +
+			   format(mean) + " ns/op  +- " + format(dev) +
+			   "  (min " + format(ns[0]) + ")");
+    }
+
+    private static String format(double x) {
+	return pad(new java.text.DecimalFormat("0.0").format(x), 10);
+    }
+
+    private static String pad(String s, int width) {
+	StringBuffer result = new StringBuffer(s);
+	while (result.length() < width) result.append(' ');
+	return result.toString();
+    }
+}
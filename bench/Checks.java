@@ -0,0 +1,246 @@
+import java.io.*;
+import java.util.*;
+
+// regression checks that need neither Soot nor a program to analyze:
+// each check builds its input directly and compares the result with
+// the exact expected one. run them with
+//
+//   javac -cp <soot classpath> -d <dir> src/*.java bench/*.java
+//   java -cp <dir> Checks [name filter]
+//
+// a failed check throws, so the exit status is not 0.
+
+public class Checks {
+
+    public static void main(String[] args) throws Exception {
+	String filter = (args.length > 0) ? args[0] : "";
+
+	// the tracker check needs the profiling mode, and no output;
+	// this has to happen before RuntimeTracker is loaded
+	System.setProperty("tracker.profile", "true");
+	System.setProperty("tracker.log", "off");
+
+	int run = 0;
+	if ("callgraph".indexOf(filter) != -1) {
+	    callGraph();
+	    run++;
+	}
+	if ("tracker".indexOf(filter) != -1) {
+	    trackerThreads();
+	    run++;
+	}
+	if ("binary".indexOf(filter) != -1) {
+	    binaryRoundTrip();
+	    run++;
+	}
+	System.out.println(run + " checks passed");
+    }
+
+    static void check(boolean ok, String what) {
+	if (!ok) throw new RuntimeException("Check failed: " + what);
+	System.out.println("ok   " + what);
+    }
+
+    // ------------------------------------------------------------
+    // CallGraph.reachableFrom/reachingTo, on a method that calls
+    // itself and on a chain without cycles
+    static void callGraph() {
+	CallGraph.Builder b = new CallGraph.Builder();
+	b.addMethod("r", 1);
+	b.addSite("r", 1, 0);
+	b.addTarget("r");
+	CallGraph g = b.build();
+	check(g.reachableFrom(0).equals(bits(new int[] { 0 })),
+	      "a recursive method reaches itself");
+	check(g.reachingTo(0).equals(bits(new int[] { 0 })),
+	      "a recursive method is reached from itself");
+
+	// a -> b -> c -> b, and a -> c
+	b = new CallGraph.Builder();
+	b.addMethod("a", 1);
+	b.addMethod("b", 2);
+	b.addMethod("c", 3);
+	b.addSite("a", 1, 0);
+	b.addTarget("b");
+	b.addSite("a", 2, 1);
+	b.addTarget("c");
+	b.addSite("b", 1, 2);
+	b.addTarget("c");
+	b.addSite("c", 1, 3);
+	b.addTarget("b");
+	g = b.build();
+	check(g.reachableFrom(0).equals(bits(new int[] { 1, 2 })),
+	      "a method not on a cycle doesn't reach itself");
+	check(g.reachableFrom(1).equals(bits(new int[] { 1, 2 })),
+	      "a method on a cycle reaches itself");
+	check(g.reachingTo(0).isEmpty(), "nothing reaches the root");
+	check(g.reachingTo(2).equals(bits(new int[] { 0, 1, 2 })),
+	      "all callers of a method on a cycle");
+    }
+
+    // ------------------------------------------------------------
+    // RuntimeTracker under contention: THREADS threads each run
+    // CALLS rounds of probes on the same methods and sites, and the
+    // coverage files and the profile must be exact. the fixture has
+    // 8 methods, a static site 1_1 (-> 2), a virtual site 1_2 (-> 3
+    // for String receivers, -> 4 for Integer receivers) and a static
+    // site 2_1 (-> 5) that never runs.
+    static final int THREADS = 8;
+    static final int CALLS = 200000;
+
+    static void trackerThreads() throws Exception {
+	String dir = tempDir("checks");
+	write(dir + "/rmethods", new String[] {
+		"1: <C: void m1()>", "2: <C: void m2()>", "3: <C: void m3()>",
+		"4: <C: void m4()>", "5: <C: void m5()>", "6: <C: void m6()>",
+		"7: <C: void m7()>", "8: <C: void m8()>" });
+	write(dir + "/sites", new String[] { "0: 1_1", "1: 1_2", "2: 2_1" });
+	write(dir + "/edges", new String[] { "1_1,2", "1_2,3", "1_2,4", "2_1,5" });
+	write(dir + "/edges.annotated", new String[] {
+		"1_1,2", "1_2,3,java.lang.String", "1_2,4,java.lang.Integer", "2_1,5" });
+
+	RuntimeTracker.start(dir);
+	final Object string = "s";
+	final Object integer = new Integer(1);
+	Thread[] threads = new Thread[THREADS];
+	for (int t = 0; t < THREADS; t++) {
+	    threads[t] = new Thread() {
+		    public void run() {
+			for (int i = 0; i < CALLS; i++) {
+			    RuntimeTracker.methodEntry(1);
+			    RuntimeTracker.beforeCall(0);
+			    RuntimeTracker.methodEntry(2);
+			    boolean even = (i % 2 == 0);
+			    RuntimeTracker.beforeCall(1, even ? string : integer);
+			    RuntimeTracker.methodEntry(even ? 3 : 4);
+			}
+		    }
+		};
+	    threads[t].start();
+	}
+	for (int t = 0; t < THREADS; t++) threads[t].join();
+	RuntimeTracker.end();
+
+	long all = (long) THREADS * CALLS;
+	long half = all / 2;
+	check(read(dir + "/nmethods").equals(Arrays.asList(new String[] {
+		    "5: <C: void m5()>", "6: <C: void m6()>", "7: <C: void m7()>",
+		    "8: <C: void m8()>", "Not covered: 4 out of 8 [50%]" })),
+	      "nmethods after " + THREADS + " threads");
+	check(read(dir + "/nedges").equals(Arrays.asList(new String[] {
+		    "2_1,5", "Not covered: 1 out of 4 [25%]" })),
+	      "nedges after " + THREADS + " threads");
+	check(read(dir + "/nedges.annotated").equals(Arrays.asList(new String[] {
+		    "2_1,5", "Not covered: 1 out of 4 [25%]" })),
+	      "nedges.annotated after " + THREADS + " threads");
+	check(read(dir + "/profile").equals(Arrays.asList(new String[] {
+		    "===== Methods (4)",
+		    all + " 1: <C: void m1()>",
+		    all + " 2: <C: void m2()>",
+		    half + " 3: <C: void m3()>",
+		    half + " 4: <C: void m4()>",
+		    "===== Edges (3)",
+		    all + " 1_1,2",
+		    half + " 1_2,3",
+		    half + " 1_2,4",
+		    "===== Annotated edges (3)",
+		    all + " 1_1,2",
+		    half + " 1_2,3,java.lang.String",
+		    half + " 1_2,4,java.lang.Integer" })),
+	      "exact profile counts after " + THREADS + " x " + CALLS + " rounds");
+    }
+
+    // ------------------------------------------------------------
+    // ChaBinary: the text files, converted to cha.bin and back, are
+    // the same files, and RuntimeTracker reports the same coverage
+    // and profile from cha.bin as from the text files. the fixture
+    // has a static site 1_1 (-> 2), a virtual site 1_2 (-> 3 or 4),
+    // a static site 2_1 (-> 5) and a monomorphic virtual site 2_2
+    // (-> 6).
+    static final String[] TEXT_FILES = { "rmethods", "sites", "edges", "edges.annotated" };
+
+    static void binaryRoundTrip() throws Exception {
+	String text = tempDir("text");
+	String binary = tempDir("binary");
+	String[] dirs = { text, binary };
+	for (int d = 0; d < dirs.length; d++) {
+	    write(dirs[d] + "/rmethods", new String[] {
+		    "1: <C: void m1()>", "2: <C: void m2()>", "3: <C: void m3()>",
+		    "4: <C: void m4()>", "5: <C: void m5()>", "6: <D: void m6()>" });
+	    write(dirs[d] + "/sites", new String[] {
+		    "0: 1_1,0,1", "1: 1_2,2,2", "2: 2_1,0,1", "3: 2_2,1,1" });
+	    write(dirs[d] + "/edges", new String[] {
+		    "1_1,2", "1_2,3", "1_2,4", "2_1,5", "2_2,6" });
+	    write(dirs[d] + "/edges.annotated", new String[] {
+		    "1_1,2", "1_2,3,java.lang.String", "1_2,4,java.lang.Integer",
+		    "2_1,5", "2_2,6,D" });
+	}
+
+	ChaBinary.textToBinary(binary);
+	for (int i = 0; i < TEXT_FILES.length; i++)
+	    new File(binary + "/" + TEXT_FILES[i]).delete();
+	ChaBinary.binaryToText(binary);
+	for (int i = 0; i < TEXT_FILES.length; i++)
+	    check(read(binary + "/" + TEXT_FILES[i]).equals(read(text + "/" + TEXT_FILES[i])),
+		  TEXT_FILES[i] + " after text2bin and bin2text");
+
+	// the tracker reads cha.bin when it is there
+	for (int d = 0; d < dirs.length; d++) {
+	    RuntimeTracker.start(dirs[d]);
+	    for (int i = 0; i < 3; i++) {
+		RuntimeTracker.methodEntry(1);
+		RuntimeTracker.beforeCall(0);
+		RuntimeTracker.methodEntry(2);
+		RuntimeTracker.beforeCall(1, "s");
+		RuntimeTracker.methodEntry(3);
+		RuntimeTracker.beforeCall(3);
+		RuntimeTracker.methodEntry(6);
+	    }
+	    RuntimeTracker.end();
+	}
+	String[] results = { "nmethods", "nedges", "nedges.annotated", "profile" };
+	for (int i = 0; i < results.length; i++)
+	    check(read(binary + "/" + results[i]).equals(read(text + "/" + results[i])),
+		  results[i] + " from cha.bin");
+	check(read(text + "/nedges").equals(Arrays.asList(new String[] {
+		    "1_2,4", "2_1,5", "Not covered: 2 out of 5 [40%]" })),
+	      "nedges of the round trip");
+    }
+
+    // ------------------------------------------------------------
+    // a new empty directory, removed at exit with its files
+    static String tempDir(String name) {
+	try {
+	    File dir = File.createTempFile("checks-" + name, "");
+	    dir.delete();
+	    dir.mkdirs();
+	    dir.deleteOnExit();
+	    return dir.getPath();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    static void write(String file, String[] lines) throws IOException {
+	new File(file).deleteOnExit();
+	PrintWriter out = new PrintWriter(new FileWriter(file));
+	for (int i = 0; i < lines.length; i++) out.println(lines[i]);
+	out.close();
+    }
+
+    static List read(String file) throws IOException {
+	new File(file).deleteOnExit();
+	ArrayList lines = new ArrayList();
+	BufferedReader in = new BufferedReader(new FileReader(file));
+	String line;
+	while ((line = in.readLine()) != null) lines.add(line);
+	in.close();
+	return lines;
+    }
+
+    static BitSet bits(int[] members) {
+	BitSet result = new BitSet();
+	for (int i = 0; i < members.length; i++) result.set(members[i]);
+	return result;
+    }
+}
@@ -0,0 +1,93 @@
+import soot.*;
+import soot.util.*;
+import java.util.*;
+
+// compares Hierarchy.virtualDispatch, which uses the flattened
+// dispatch tables, with the original walk up the superclass chain
+// (Hierarchy.walkDispatch). both resolve calls of the megamorphic
+// methods of java.lang.Object for every non-abstract class, which is
+// what ChaAnalysis.processCall does for "x.toString()" when x is
+// declared as an Object or an interface.
+//
+// usage: java DispatchBenchmark <soot classpath> <main class> [rounds]
+
+public class DispatchBenchmark {
+
+    private static final String[] METHODS = {
+	"java.lang.String toString()",
+	"boolean equals(java.lang.Object)",
+	"int hashCode()"
+    };
+
+    public static void main(String[] args) {
+	int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+	// load the hierarchy the same way Loader does, but without
+	// building any method bodies
+	soot.Main.setReservedNames();
+	Scene.v().setSootClassPath(args[0]);
+	SootClass main_class = Scene.v().loadClassAndSupport(args[1]);
+	Scene.v().setMainClass(main_class);
+	main_class.setApplicationClass();
+	List cc = new ArrayList();
+	cc.addAll(Scene.v().getContextClasses());
+	for (Iterator it = cc.iterator(); it.hasNext();)
+	    ((SootClass) it.next()).setApplicationClass();
+
+	Chain all = Scene.v().getApplicationClasses();
+	Hierarchy hierarchy = new Hierarchy();
+	long t = System.nanoTime();
+	hierarchy.initialize(all);
+	System.out.println("Hierarchy.initialize: " + all.size() +
+			   " classes in " + (System.nanoTime() - t) / 1000000 + " ms");
+
+	SootClass object = Scene.v().getSootClass("java.lang.Object");
+	ArrayList receivers =
+	    new ArrayList(hierarchy.possibleReceiverClasses(object));
+
+	for (int i = 0; i < METHODS.length; i++) {
+	    SootMethod target = object.getMethod(METHODS[i]);
+
+	    // the two must agree before timing means anything
+	    for (Iterator it = receivers.iterator(); it.hasNext();) {
+		SootClass c = (SootClass) it.next();
+		if (hierarchy.virtualDispatch(target, c) !=
+		    hierarchy.walkDispatch(target, c))
+		    throw new RuntimeException("dispatch differs for " + c);
+	    }
+
+	    long walk = time(hierarchy, target, receivers, rounds, false);
+	    long table = time(hierarchy, target, receivers, rounds, true);
+	    long calls = (long) rounds * receivers.size();
+	    System.out.println(METHODS[i] + ": " + receivers.size() +
+			       " receivers, walk " +
+			       String.format("%.2f", (double) walk / calls) +
+			       " ns/dispatch, table " +
+			       String.format("%.2f", (double) table / calls) +
+			       " ns/dispatch, speedup " +
+			       ((table == 0) ? "-" : String.format("%.2f", (double) walk / table)) +
+			       "x");
+	}
+    }
+
+    // total time in ns of 'rounds' dispatches of target for every
+    // receiver class, after the same number of warm-up rounds
+    private static long time(Hierarchy h, SootMethod target, List receivers,
+			     int rounds, boolean table) {
+	long start = 0;
+	int found = 0;
+	for (int r = 0; r < 2 * rounds; r++) {
+	    if (r == rounds) start = System.nanoTime();
+	    int subsig = h.subsignatureId(target);
+	    for (int i = 0; i < receivers.size(); i++) {
+		SootClass c = (SootClass) receivers.get(i);
+		SootMethod m = table ?
+		    h.virtualDispatch(subsig, c) : h.walkDispatch(target, c);
+		if (m != null) found++;
+	    }
+	}
+	long elapsed = System.nanoTime() - start;
+	if (found == 0) System.out.println("no targets found");
+	return elapsed;
+    }
+}
@@ -0,0 +1,55 @@
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+// runs the main method of another class and then reports the wall
+// time and the peak heap usage of the run as the last line of its
+// output:
+//
+//   PHASE <milliseconds> <peak heap bytes>
+//
+// PipelineBenchmark runs every phase of the pipeline in its own JVM
+// through this class (Soot keeps global state, so the phases can't
+// share a JVM).
+//
+//   java PhaseRunner <main class> [args ...]
+
+public class PhaseRunner {
+
+    public static void main(String[] args) throws Exception {
+	Method main = Class.forName(args[0])
+	    .getMethod("main", new Class[] { String[].class });
+	String[] rest = new String[args.length - 1];
+	System.arraycopy(args, 1, rest, 0, rest.length);
+
+	// report from a shutdown hook, since the phase may end with
+	// System.exit
+	final long start = System.nanoTime();
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    long elapsed = System.nanoTime() - start;
+		    System.out.flush();
+		    System.out.println("PHASE " + (elapsed / 1000000) + " " + peakHeap());
+		}
+	    });
+
+	try {
+	    main.invoke(null, new Object[] { rest });
+	} catch (InvocationTargetException e) {
+	    if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+	    throw (Error) e.getCause();
+	}
+    }
+
+    // the sum of the peak usage of all heap memory pools
+    static long peakHeap() {
+	long peak = 0;
+	for (Iterator it = ManagementFactory.getMemoryPoolMXBeans().iterator();
+	     it.hasNext();) {
+	    MemoryPoolMXBean pool = (MemoryPoolMXBean) it.next();
+	    if (pool.getType() == MemoryType.HEAP)
+		peak += pool.getPeakUsage().getUsed();
+	}
+	return peak;
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.util.*;
+import javax.tools.*;
+
+// the end-to-end benchmark: for programs of growing size (see
+// ProgramGenerator), runs the whole pipeline
+//
+//   generate -> compile -> ChaMain -> Instrumenter -> run the program,
+//                                                     with and without
+//                                                     instrumentation
+//
+// and reports the time of each phase, the peak heap of the analysis
+// and of the instrumentation, and the slowdown of the instrumented
+// run. every phase after compiling runs in its own JVM (through
+// PhaseRunner), with the classpath of this JVM, so the tool classes
+// and Soot must be on it:
+//
+//   java -cp <dir>:<soot classpath> PipelineBenchmark <library classpath>
+//        <work dir> [name=value ...]
+//
+// <library classpath> holds the library classes that Soot needs
+// (e.g. rt.jar of the JDK that Soot supports), and name=value sets a
+// parameter of the generator for all sizes. the results are printed
+// and written to <work dir>/pipeline.csv. options:
+//
+//   -Dpipeline.sizes=100,200,...  the numbers of classes
+//   -Dpipeline.jvm=...            JVM options of the phases
+//   -Dpipeline.javac=...          javac options; Soot only reads
+//                                 class files of the versions it
+//                                 knows, e.g. "-source 1.4 -target 1.4"
+//   -Dpipeline.soot.args=...      the arguments of Instrumenter; {out}
+//                                 is replaced by the directory of the
+//                                 instrumented classes and {cp} by the
+//                                 Soot classpath. {out} has to be the
+//                                 third argument (see Instrumenter).
+
+public class PipelineBenchmark {
+
+    private static String sizes =
+	System.getProperty("pipeline.sizes", "100,200,400,800,1600");
+    private static String jvm_options =
+	System.getProperty("pipeline.jvm", "");
+    private static String javac_options =
+	System.getProperty("pipeline.javac", "");
+    private static String soot_args =
+	System.getProperty("pipeline.soot.args",
+			   "--app -d {out} --soot-classpath {cp} Main");
+
+    private static String tool_classpath = System.getProperty("java.class.path");
+
+    // the result of a phase in its own JVM
+    private static class Phase {
+	long millis;
+	long peak_heap;
+    }
+
+    // ------------------------------------------------------------
+    public static void main(String[] args) throws Exception {
+	if (args.length < 2) {
+	    System.err.println("usage: java PipelineBenchmark <library classpath> " +
+			       "<work dir> [name=value ...]");
+	    System.exit(1);
+	}
+	String library = args[0];
+	File work = new File(args[1]);
+	work.mkdirs();
+
+	PrintWriter csv = new PrintWriter(new FileWriter(new File(work, "pipeline.csv")));
+	csv.println("classes,methods,sites,edges,generate_ms,compile_ms," +
+		    "analyze_ms,analyze_heap,instrument_ms,instrument_heap," +
+		    "run_ms,instrumented_run_ms,overhead");
+	System.out.println(pad("classes", 9) + pad("methods", 9) + pad("sites", 9) +
+			   pad("edges", 9) + pad("compile", 10) + pad("analyze", 10) +
+			   pad("heap", 8) + pad("instr", 10) + pad("heap", 8) +
+			   pad("run", 9) + pad("instr.run", 11) + "overhead");
+
+	StringTokenizer st = new StringTokenizer(sizes, ",");
+	while (st.hasMoreTokens()) {
+	    int size = Integer.parseInt(st.nextToken().trim());
+	    ProgramGenerator g = new ProgramGenerator();
+	    for (int i = 2; i < args.length; i++) g.set(args[i]);
+	    g.classes = size;
+
+	    File dir = new File(work, String.valueOf(size));
+	    File src = new File(dir, "src");
+	    File classes = new File(dir, "classes");
+	    File instrumented = new File(dir, "CLASSES");
+	    classes.mkdirs();
+	    instrumented.mkdirs();
+
+	    long t = System.nanoTime();
+	    List files = g.generate(src);
+	    long generate_ms = (System.nanoTime() - t) / 1000000;
+
+	    t = System.nanoTime();
+	    compile(files, classes);
+	    long compile_ms = (System.nanoTime() - t) / 1000000;
+
+	    String soot_cp = classes + File.pathSeparator + library +
+		File.pathSeparator + tool_classpath;
+
+	    Phase analyze = run(dir, "analyze", tool_classpath, new String[] {
+		    "ChaMain", classes + File.pathSeparator + library, "Main",
+		    dir.getPath() });
+
+	    ArrayList instrument_args = new ArrayList();
+	    instrument_args.add("Instrumenter");
+	    StringTokenizer a = new StringTokenizer(soot_args);
+	    while (a.hasMoreTokens())
+		instrument_args.add(a.nextToken().replace("{out}", instrumented.getPath())
+				    .replace("{cp}", soot_cp));
+	    Phase instrument = run(dir, "instrument", tool_classpath,
+				   (String[]) instrument_args.toArray(new String[0]));
+
+	    Phase plain = run(dir, "run", classes + File.pathSeparator + tool_classpath,
+			      new String[] { "Main" });
+	    Phase tracked = run(dir, "instrumented-run",
+				instrumented + File.pathSeparator + tool_classpath,
+				new String[] { "Main", dir.getPath() });
+
+	    int methods = lines(new File(dir, "rmethods"));
+	    int sites = lines(new File(dir, "sites"));
+	    int edges = lines(new File(dir, "edges"));
+	    double overhead = (plain.millis == 0) ? 0 :
+		(double) tracked.millis / plain.millis;
+	    String ratio = new java.text.DecimalFormat("0.00").format(overhead);
+
+	    System.out.println(pad(String.valueOf(size), 9) + pad(String.valueOf(methods), 9) +
+			       pad(String.valueOf(sites), 9) + pad(String.valueOf(edges), 9) +
+			       pad(compile_ms + "ms", 10) + pad(analyze.millis + "ms", 10) +
+			       pad(mb(analyze.peak_heap), 8) +
+			       pad(instrument.millis + "ms", 10) +
+			       pad(mb(instrument.peak_heap), 8) +
+			       pad(plain.millis + "ms", 9) + pad(tracked.millis + "ms", 11) +
+			       ratio + "x");
+	    csv.println(size + "," + methods + "," + sites + "," + edges + "," +
+			generate_ms + "," + compile_ms + "," +
+			analyze.millis + "," + analyze.peak_heap + "," +
+			instrument.millis + "," + instrument.peak_heap + "," +
+			plain.millis + "," + tracked.millis + "," + ratio);
+	    csv.flush();
+	}
+	csv.close();
+    }
+
+    // ------------------------------------------------------------
+    private static void compile(List files, File classes) throws IOException {
+	JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+	if (javac == null)
+	    throw new RuntimeException("No Java compiler; run the benchmark on a JDK");
+	StandardJavaFileManager fm = javac.getStandardFileManager(null, null, null);
+
+	ArrayList options = new ArrayList();
+	StringTokenizer st = new StringTokenizer(javac_options);
+	while (st.hasMoreTokens()) options.add(st.nextToken());
+	options.add("-nowarn");
+	options.add("-d");
+	options.add(classes.getPath());
+
+	boolean ok = javac.getTask(null, fm, null, options, null,
+				   fm.getJavaFileObjectsFromFiles(files)).call().booleanValue();
+	fm.close();
+	if (!ok) throw new RuntimeException("Compiling the generated program failed");
+    }
+
+    // run 'args' with PhaseRunner in a new JVM. the output goes to
+    // <dir>/<name>.log; a failed phase stops the benchmark.
+    private static Phase run(File dir, String name, String classpath, String[] args)
+	throws IOException, InterruptedException {
+	ArrayList command = new ArrayList();
+	command.add(System.getProperty("java.home") + File.separator + "bin" +
+		    File.separator + "java");
+	StringTokenizer st = new StringTokenizer(jvm_options);
+	while (st.hasMoreTokens()) command.add(st.nextToken());
+	command.add("-Dtracker.log=off");
+	command.add("-cp");
+	command.add(classpath);
+	command.add("PhaseRunner");
+	command.addAll(Arrays.asList(args));
+
+	File log = new File(dir, name + ".log");
+	ProcessBuilder pb = new ProcessBuilder(command);
+	pb.redirectErrorStream(true);
+	pb.redirectOutput(log);
+	int status = pb.start().waitFor();
+
+	Phase result = null;
+	BufferedReader in = new BufferedReader(new FileReader(log));
+	String line;
+	while ((line = in.readLine()) != null) {
+	    if (!line.startsWith("PHASE ")) continue;
+	    StringTokenizer t = new StringTokenizer(line.substring(6));
+	    result = new Phase();
+	    result.millis = Long.parseLong(t.nextToken());
+	    result.peak_heap = Long.parseLong(t.nextToken());
+	}
+	in.close();
+
+	if (status != 0 || result == null)
+	    throw new RuntimeException("Phase " + name + " failed (exit status " +
+				       status + "), see " + log);
+	return result;
+    }
+
+    private static int lines(File f) throws IOException {
+	if (!f.exists()) return 0;
+	BufferedReader in = new BufferedReader(new FileReader(f));
+	int n = 0;
+	while (in.readLine() != null) n++;
+	in.close();
+	return n;
+    }
+
+    private static String mb(long bytes) {
+	return (bytes >> 20) + "MB";
+    }
+
+    private static String pad(String s, int width) {
+	StringBuffer result = new StringBuffer(s);
+	while (result.length() < width) result.append(' ');
+	return result.toString();
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.*;
+import java.util.*;
+
+// generates synthetic Java programs for the end-to-end benchmark (see
+// PipelineBenchmark). a program is a forest of class trees plus a set
+// of interfaces, and the parameters control its shape:
+//
+//   classes       the number of classes
+//   width, depth  every class has up to 'width' direct subclasses,
+//                 and every tree up to 'depth' levels; new trees are
+//                 started until there are enough classes
+//   methods       the number of virtual methods m0..m<methods-1>.
+//                 the root of each tree declares all of them, and
+//                 every subclass overrides each one with probability
+//                 'override' (in percent)
+//   interfaces    the number of interfaces, each with one method
+//   fanout        the number of interfaces each class implements
+//   poly          the number of receiver classes at each call site
+//                 of the driver code (call-site polymorphism)
+//   calls         the number of call sites per class tree (and per
+//                 interface) in the driver code
+//   rounds        how many times Main runs all driver code
+//   seed          the random seed
+//
+// every method m<j> calls m<j+1> on 'this' (a virtual call whose CHA
+// targets are all overriding methods in the subtree) and a static
+// helper, so the call graph has both kinds of edges. Main calls
+// RuntimeTracker.start/end through reflection, if it is given the
+// output directory of the tracker as an argument, so the analysis
+// doesn't see the tracker:
+//
+//   java ProgramGenerator <dir> [name=value ...]
+//
+// writes the sources to <dir>, with the main class "Main".
+
+public class ProgramGenerator {
+
+    public int classes = 200;
+    public int width = 3;
+    public int depth = 4;
+    public int methods = 8;
+    public int override = 50;
+    public int interfaces = 10;
+    public int fanout = 1;
+    public int poly = 4;
+    public int calls = 8;
+    public int rounds = 2000;
+    public long seed = 1;
+
+    // set a parameter from a "name=value" string
+    public void set(String assignment) {
+	int eq = assignment.indexOf('=');
+	if (eq == -1)
+	    throw new IllegalArgumentException("Expected name=value: " + assignment);
+	String name = assignment.substring(0, eq);
+	String value = assignment.substring(eq + 1);
+	try {
+	    if (name.equals("seed"))
+		seed = Long.parseLong(value);
+	    else
+		getClass().getField(name).setInt(this, Integer.parseInt(value));
+	} catch (NoSuchFieldException e) {
+	    throw new IllegalArgumentException("Unknown parameter: " + name);
+	} catch (IllegalAccessException e) {
+	    throw new IllegalArgumentException("Unknown parameter: " + name);
+	}
+    }
+
+    public String toString() {
+	return "classes=" + classes + " width=" + width + " depth=" + depth +
+	    " methods=" + methods + " override=" + override +
+	    " interfaces=" + interfaces + " fanout=" + fanout +
+	    " poly=" + poly + " calls=" + calls + " rounds=" + rounds +
+	    " seed=" + seed;
+    }
+
+    // ------------------------------------------------------------
+    // the shape of the program
+
+    private Random random;
+
+    // for each class: its parent (-1 for the root of a tree), the
+    // methods it declares and the interfaces it implements
+    private int[] parent;
+    private boolean[][] declares;
+    private int[][] implemented;
+
+    // the classes of each tree, and the classes implementing each
+    // interface
+    private ArrayList trees = new ArrayList();
+    private ArrayList[] implementors;
+
+    // write the sources of the program to dir, and return the names
+    // of the files
+    public List generate(File dir) throws IOException {
+	random = new Random(seed);
+	dir.mkdirs();
+	shape();
+
+	ArrayList files = new ArrayList();
+	for (int c = 0; c < classes; c++)
+	    files.add(write(dir, "C" + c, classSource(c)));
+	for (int i = 0; i < interfaces; i++)
+	    files.add(write(dir, "I" + i,
+			    "public interface I" + i + " {\n" +
+			    "    int i" + i + "(int x);\n" +
+			    "}\n"));
+	for (int t = 0; t < trees.size(); t++)
+	    files.add(write(dir, "T" + t, treeDriverSource(t)));
+	for (int i = 0; i < interfaces; i++)
+	    if (!implementors[i].isEmpty())
+		files.add(write(dir, "D" + i, interfaceDriverSource(i)));
+	files.add(write(dir, "Main", mainSource()));
+	return files;
+    }
+
+    private void shape() {
+	parent = new int[classes];
+	declares = new boolean[classes][methods];
+	implemented = new int[classes][];
+	trees.clear();
+	implementors = new ArrayList[interfaces];
+	for (int i = 0; i < interfaces; i++) implementors[i] = new ArrayList();
+
+	// the trees, level by level
+	int[] level = new int[classes];
+	int[] children = new int[classes];
+	ArrayList members = null;
+	int next_parent = 0;
+	for (int c = 0; c < classes; c++) {
+	    // find a parent with room for one more child in the current
+	    // tree, or start a new tree
+	    while (members != null && next_parent < members.size()) {
+		int p = ((Integer) members.get(next_parent)).intValue();
+		if (level[p] + 1 < depth && children[p] < width) break;
+		next_parent++;
+	    }
+	    if (members == null || next_parent >= members.size()) {
+		members = new ArrayList();
+		trees.add(members);
+		next_parent = 0;
+		parent[c] = -1;
+		level[c] = 0;
+	    } else {
+		parent[c] = ((Integer) members.get(next_parent)).intValue();
+		level[c] = level[parent[c]] + 1;
+		children[parent[c]]++;
+	    }
+	    members.add(new Integer(c));
+
+	    for (int j = 0; j < methods; j++)
+		declares[c][j] = (parent[c] == -1) || random.nextInt(100) < override;
+
+	    int count = Math.min(fanout, interfaces);
+	    TreeSet chosen = new TreeSet();
+	    while (chosen.size() < count)
+		chosen.add(new Integer(random.nextInt(interfaces)));
+	    implemented[c] = new int[count];
+	    int k = 0;
+	    for (Iterator it = chosen.iterator(); it.hasNext(); k++) {
+		implemented[c][k] = ((Integer) it.next()).intValue();
+		implementors[implemented[c][k]].add(new Integer(c));
+	    }
+	}
+    }
+
+    // ------------------------------------------------------------
+    // the sources
+
+    private String classSource(int c) {
+	StringBuffer s = new StringBuffer();
+	s.append("public class C").append(c);
+	if (parent[c] != -1) s.append(" extends C").append(parent[c]);
+	for (int k = 0; k < implemented[c].length; k++)
+	    s.append(k == 0 ? " implements " : ", ").append("I").append(implemented[c][k]);
+	s.append(" {\n");
+
+	s.append("    static int h(int x) { return (x ^ ").append(c).append(") & 1023; }\n");
+	for (int j = 0; j < methods; j++) {
+	    if (!declares[c][j]) continue;
+	    s.append("    public int m").append(j).append("(int x) {\n");
+	    if (j + 1 < methods)
+		s.append("        if (x > 0) return m").append(j + 1)
+		    .append("(x >> 1) + h(x);\n");
+	    s.append("        return x + ").append(c * methods + j).append(";\n");
+	    s.append("    }\n");
+	}
+	for (int k = 0; k < implemented[c].length; k++) {
+	    int i = implemented[c][k];
+	    s.append("    public int i").append(i).append("(int x) { return m0(x) + ")
+		.append(i).append("; }\n");
+	}
+	s.append("}\n");
+	return s.toString();
+    }
+
+    // the driver code for tree t: 'calls' virtual call sites, each on
+    // an array of 'poly' receivers from the tree
+    private String treeDriverSource(int t) {
+	List members = (List) trees.get(t);
+	int root = ((Integer) members.get(0)).intValue();
+	StringBuffer s = new StringBuffer();
+	s.append("public class T").append(t).append(" {\n");
+	s.append("    static C").append(root).append("[] objs = {");
+	List receivers = sample(members);
+	for (int k = 0; k < receivers.size(); k++)
+	    s.append(k == 0 ? " " : ", ").append("new C").append(receivers.get(k)).append("()");
+	s.append(" };\n");
+	s.append("    static int run(int i) {\n");
+	s.append("        int sum = 0;\n");
+	for (int k = 0; k < calls; k++)
+	    s.append("        sum += objs[(i + ").append(k).append(") % objs.length].m")
+		.append(random.nextInt(methods)).append("(i & 15);\n");
+	s.append("        return sum;\n");
+	s.append("    }\n");
+	s.append("}\n");
+	return s.toString();
+    }
+
+    // the driver code for interface i, in the same way
+    private String interfaceDriverSource(int i) {
+	StringBuffer s = new StringBuffer();
+	s.append("public class D").append(i).append(" {\n");
+	s.append("    static I").append(i).append("[] objs = {");
+	List receivers = sample(implementors[i]);
+	for (int k = 0; k < receivers.size(); k++)
+	    s.append(k == 0 ? " " : ", ").append("new C").append(receivers.get(k)).append("()");
+	s.append(" };\n");
+	s.append("    static int run(int i) {\n");
+	s.append("        int sum = 0;\n");
+	for (int k = 0; k < calls; k++)
+	    s.append("        sum += objs[(i + ").append(k).append(") % objs.length].i")
+		.append(i).append("(i & 15);\n");
+	s.append("        return sum;\n");
+	s.append("    }\n");
+	s.append("}\n");
+	return s.toString();
+    }
+
+    // up to 'poly' different classes from the list
+    private List sample(List candidates) {
+	ArrayList copy = new ArrayList(candidates);
+	Collections.shuffle(copy, random);
+	return copy.subList(0, Math.min(poly, copy.size()));
+    }
+
+    private String mainSource() {
+	StringBuffer s = new StringBuffer();
+	s.append("public class Main {\n");
+	s.append("    public static void main(String[] args) throws Exception {\n");
+	s.append("        Class tracker = null;\n");
+	s.append("        if (args.length > 0) {\n");
+	s.append("            tracker = Class.forName(\"RuntimeTracker\");\n");
+	s.append("            tracker.getMethod(\"start\", new Class[] { String.class })\n");
+	s.append("                .invoke(null, new Object[] { args[0] });\n");
+	s.append("        }\n");
+	s.append("        long sum = 0;\n");
+	s.append("        for (int i = 0; i < ").append(rounds).append("; i++) {\n");
+	for (int t = 0; t < trees.size(); t++)
+	    s.append("            sum += T").append(t).append(".run(i);\n");
+	for (int i = 0; i < interfaces; i++)
+	    if (!implementors[i].isEmpty())
+		s.append("            sum += D").append(i).append(".run(i);\n");
+	s.append("        }\n");
+	s.append("        System.out.println(\"result \" + sum);\n");
+	s.append("        if (tracker != null)\n");
+	s.append("            tracker.getMethod(\"end\", new Class[0]).invoke(null, new Object[0]);\n");
+	s.append("    }\n");
+	s.append("}\n");
+	return s.toString();
+    }
+
+    private static File write(File dir, String name, String source) throws IOException {
+	File f = new File(dir, name + ".java");
+	Writer out = new FileWriter(f);
+	out.write(source);
+	out.close();
+	return f;
+    }
+
+    // ------------------------------------------------------------
+    public static void main(String[] args) throws IOException {
+	if (args.length < 1) {
+	    System.err.println("usage: java ProgramGenerator <dir> [name=value ...]");
+	    System.exit(1);
+	}
+	ProgramGenerator g = new ProgramGenerator();
+	for (int i = 1; i < args.length; i++) g.set(args[i]);
+	List files = g.generate(new File(args[0]));
+	System.out.println("Generated " + files.size() + " files (" + g + ")");
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// benchmarks for the probes of RuntimeTracker, on synthetic
+// "rmethods", "sites", "edges" and "edges.annotated" files generated
+// from a fixed seed: METHODS methods and SITES call sites, half of
+// them static/special sites with one edge and half of them virtual
+// sites with an annotated edge for each of a few receiver classes.
+//
+// the virtual sites are called with receivers of real classes
+// (RECEIVERS), so beforeCall(int,Object) takes the same paths as in
+// an instrumented program: monomorphic sites always see the same
+// class, polymorphic ones cycle through three and megamorphic ones
+// through all of them. the contended benchmarks run the same probes
+// on Bench.threads threads at once, all on the same sites.
+
+class TrackerBenchmarks {
+
+    static final long SEED = 7;
+    static final int METHODS = 2000;
+    static final int SITES = 10000;
+
+    static final Object[] RECEIVERS = {
+	"string", new Integer(1), new Long(2), new Double(3.0),
+	new ArrayList(), new HashMap(), new Object(), new StringBuffer()
+    };
+
+    // the static/special sites, and the virtual sites. each
+    // benchmark of beforeCall(int,Object) gets its own quarter of the
+    // virtual sites, so the inline caches of one don't depend on
+    // what the others did before.
+    static int[] static_sites;
+    static int[] virtual_sites;
+
+    // the threads of the contended benchmarks; created on first use
+    private static ExecutorService pool = null;
+
+    // ------------------------------------------------------------
+    static List all() {
+	fixture();
+	ArrayList result = new ArrayList();
+
+	result.add(new Bench.Benchmark("RuntimeTracker.methodEntry", 10000000) {
+		void run(int ops) {
+		    for (int i = 0; i < ops; i++)
+			RuntimeTracker.methodEntry(1 + i % METHODS);
+		}
+	    });
+
+	result.add(new Bench.Benchmark("RuntimeTracker.beforeCall(int)", 10000000) {
+		void run(int ops) {
+		    int n = static_sites.length;
+		    for (int i = 0; i < ops; i++)
+			RuntimeTracker.beforeCall(static_sites[i % n]);
+		}
+	    });
+
+	result.add(receiverBenchmark("monomorphic", quarter(0), 1));
+	result.add(receiverBenchmark("polymorphic", quarter(1), 3));
+	result.add(receiverBenchmark("megamorphic", quarter(2), RECEIVERS.length));
+
+	final int[] contended_sites = quarter(3);
+	result.add(contended("RuntimeTracker.methodEntry", new Probe() {
+		void call(int i) { RuntimeTracker.methodEntry(1 + i % METHODS); }
+	    }));
+	result.add(contended("RuntimeTracker.beforeCall(int)", new Probe() {
+		void call(int i) {
+		    RuntimeTracker.beforeCall(static_sites[i % static_sites.length]);
+		}
+	    }));
+	result.add(contended("RuntimeTracker.beforeCall(int,Object)", new Probe() {
+		void call(int i) {
+		    RuntimeTracker.beforeCall(contended_sites[i % contended_sites.length],
+					      RECEIVERS[i % 3]);
+		}
+	    }));
+
+	return result;
+    }
+
+    // beforeCall(int,Object) on the given sites, each called with
+    // 'classes' different receiver classes in turn
+    private static Bench.Benchmark receiverBenchmark(String name, final int[] sites,
+						     final int classes) {
+	return new Bench.Benchmark("RuntimeTracker.beforeCall(int,Object) " + name,
+				   10000000) {
+		void run(int ops) {
+		    int n = sites.length;
+		    for (int i = 0; i < ops; i++)
+			RuntimeTracker.beforeCall(sites[i % n],
+						  RECEIVERS[(i / n) % classes]);
+		}
+	    };
+    }
+
+    // the k-th quarter of the virtual sites
+    private static int[] quarter(int k) {
+	int[] result = new int[(virtual_sites.length - k + 3) / 4];
+	for (int i = 0; i < result.length; i++)
+	    result[i] = virtual_sites[4 * i + k];
+	return result;
+    }
+
+    // ------------------------------------------------------------
+    private static abstract class Probe {
+	abstract void call(int i);
+    }
+
+    // the probe on Bench.threads threads at once. each thread does
+    // its share of the operations; the time per operation is the
+    // wall time over all of them.
+    private static Bench.Benchmark contended(String name, final Probe probe) {
+	return new Bench.Benchmark(name + " x" + Bench.threads + " threads",
+				   10000000) {
+		void run(int ops) {
+		    if (pool == null) pool = Executors.newFixedThreadPool(Bench.threads);
+		    final int share = ops / Bench.threads;
+		    ArrayList futures = new ArrayList();
+		    for (int t = 0; t < Bench.threads; t++) {
+			final int offset = t * share;
+			futures.add(pool.submit(new Runnable() {
+				public void run() {
+				    for (int i = 0; i < share; i++)
+					probe.call(offset + i);
+				}
+			    }));
+		    }
+		    try {
+			for (Iterator it = futures.iterator(); it.hasNext();)
+			    ((Future) it.next()).get();
+		    } catch (Exception e) {
+			throw new RuntimeException(e);
+		    }
+		}
+	    };
+    }
+
+    static void shutdown() {
+	if (pool != null) pool.shutdown();
+    }
+
+    // ------------------------------------------------------------
+    // write the input files of RuntimeTracker to a temporary
+    // directory and start the tracker on them
+    static void fixture() {
+	Random random = new Random(SEED);
+	String dir = AnalysisBenchmarks.tempDir("tracker");
+
+	ArrayList statics = new ArrayList();
+	ArrayList virtuals = new ArrayList();
+	try {
+	    PrintWriter rmethods = new PrintWriter(new FileWriter(dir + "/rmethods"));
+	    for (int m = 1; m <= METHODS; m++)
+		rmethods.println(m + ": <bench.C" + m + ": void m" + m + "()>");
+	    rmethods.close();
+
+	    PrintWriter sites = new PrintWriter(new FileWriter(dir + "/sites"));
+	    PrintWriter edges = new PrintWriter(new FileWriter(dir + "/edges"));
+	    PrintWriter annotated = new PrintWriter(new FileWriter(dir + "/edges.annotated"));
+	    int site = 0;
+	    for (int m = 1; m <= METHODS && site < SITES; m++) {
+		int count = 1 + random.nextInt(2 * SITES / METHODS);
+		for (int x = 1; x <= count && site < SITES; x++, site++) {
+		    String name = m + "_" + x;
+		    int target = 1 + random.nextInt(METHODS);
+		    edges.println(name + "," + target);
+		    if (random.nextBoolean()) {
+			sites.println(site + ": " + name + ",0,1");
+			annotated.println(name + "," + target);
+			statics.add(new Integer(site));
+		    } else {
+			// one annotated edge per receiver class, with
+			// one or two different targets
+			int other = 1 + random.nextInt(METHODS);
+			sites.println(site + ": " + name + "," + RECEIVERS.length + "," +
+				      (other == target ? 1 : 2));
+			edges.println(name + "," + other);
+			for (int r = 0; r < RECEIVERS.length; r++)
+			    annotated.println(name + "," + (r % 2 == 0 ? target : other) +
+					      "," + RECEIVERS[r].getClass().getName());
+			virtuals.add(new Integer(site));
+		    }
+		}
+	    }
+	    sites.close();
+	    edges.close();
+	    annotated.close();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+
+	static_sites = toArray(statics);
+	virtual_sites = toArray(virtuals);
+
+	RuntimeTracker.start(dir);
+    }
+
+    private static int[] toArray(List list) {
+	int[] result = new int[list.size()];
+	for (int i = 0; i < result.length; i++)
+	    result[i] = ((Integer) list.get(i)).intValue();
+	return result;
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.util.concurrent.*;
+
+// text output files that are written by a background thread. the
+// text of each file is appended to a large buffer; when the buffer
+// is full, it is handed to the I/O thread, and the file continues in
+// a spare buffer that the I/O thread has already written out. so the
+// thread that produces the text only waits for the disk when all
+// spare buffers are in use.
+//
+// an I/O error is not ignored: the I/O thread stops writing, and the
+// next append (or close) throws a RuntimeException with the error as
+// its cause, so a full disk stops the run instead of leaving
+// truncated files behind. the same goes for an I/O thread that stops
+// for any other reason (e.g. an interrupt): a producer that waits for
+// a spare buffer checks every WAIT_MILLIS whether the thread failed
+// or is gone, instead of waiting forever.
+
+class AsyncWriter {
+
+    // the size (in chars) at which a buffer is handed to the I/O
+    // thread, and the number of buffers that can be on their way to
+    // the disk at the same time
+    private final int buffer_size;
+
+    // buffers that were written out and can be reused
+    private final BlockingQueue spare;
+
+    // buffers and close requests for the I/O thread, in order
+    private final BlockingQueue requests = new LinkedBlockingQueue();
+
+    // how long a producer waits for a spare buffer before it checks
+    // the I/O thread again
+    private static final long WAIT_MILLIS = 100;
+
+    // the first error of the I/O thread, or null
+    private volatile Throwable failure = null;
+
+    private final Thread thread;
+
+    // a request to the I/O thread: write 'text' to 'out' (if not
+    // null), then close 'out' if 'close' is set. a request with a
+    // null 'out' stops the thread.
+    private static class Request {
+	final Output out;
+	final StringBuilder text;
+	final boolean close;
+
+	Request(Output out, StringBuilder text, boolean close) {
+	    this.out = out;
+	    this.text = text;
+	    this.close = close;
+	}
+    }
+
+    // ------------------------------------------------------------
+    public AsyncWriter(int buffer_size, int spare_buffers) {
+	this.buffer_size = buffer_size;
+	spare = new ArrayBlockingQueue(spare_buffers);
+	for (int i = 0; i < spare_buffers; i++)
+	    spare.add(new StringBuilder(buffer_size + 1024));
+
+	thread = new Thread("AsyncWriter") {
+		public void run() { writeRequests(); }
+	    };
+	// a run that fails elsewhere should not hang on this thread
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    // open a file for writing. fails right away if the file can't
+    // be created.
+    public Output open(String file_name) {
+	try {
+	    return new Output(file_name);
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot create " + file_name, e);
+	}
+    }
+
+    // wait until everything is written, and stop the I/O thread. all
+    // files must have been closed.
+    public void close() {
+	put(new Request(null, null, false));
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    throw new RuntimeException(e);
+	}
+	check();
+    }
+
+    private void check() {
+	if (failure != null)
+	    throw new RuntimeException("Writing the output files failed", failure);
+    }
+
+    private void put(Request r) {
+	try {
+	    requests.put(r);
+	} catch (InterruptedException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    // ------------------------------------------------------------
+    // the I/O thread
+    private void writeRequests() {
+	char[] chars = new char[buffer_size + 1024];
+	try {
+	    while (true) {
+		Request r = (Request) requests.take();
+		if (r.out == null) return;
+
+		// after an error, the remaining requests are only
+		// drained, so that no producer blocks forever
+		if (r.text != null) {
+		    if (failure == null) {
+			int length = r.text.length();
+			if (chars.length < length) chars = new char[length];
+			r.text.getChars(0, length, chars, 0);
+			write(r.out, chars, length);
+		    }
+		    r.text.setLength(0);
+		    spare.offer(r.text);
+		}
+		if (r.close) close(r.out);
+	    }
+	} catch (InterruptedException e) {
+	    if (failure == null)
+		failure = new InterruptedIOException("AsyncWriter interrupted");
+	} catch (Throwable e) {
+	    if (failure == null) failure = e;
+	}
+    }
+
+    private void write(Output out, char[] chars, int length) {
+	try {
+	    out.file.write(chars, 0, length);
+	} catch (IOException e) {
+	    failure = new IOException("Cannot write " + out.file_name, e);
+	}
+    }
+
+    private void close(Output out) {
+	try {
+	    out.file.close();
+	} catch (IOException e) {
+	    if (failure == null)
+		failure = new IOException("Cannot write " + out.file_name, e);
+	}
+    }
+
+    // ------------------------------------------------------------
+    // one output file. only one thread may append to it.
+    public class Output {
+	private final String file_name;
+	private final Writer file;
+	private StringBuilder text = new StringBuilder(buffer_size + 1024);
+
+	private Output(String file_name) throws IOException {
+	    this.file_name = file_name;
+	    file = new OutputStreamWriter(new FileOutputStream(file_name));
+	}
+
+	public Output append(String s) {
+	    text.append(s);
+	    return full();
+	}
+
+	public Output append(Object o) {
+	    text.append(o);
+	    return full();
+	}
+
+	public Output append(int i) {
+	    text.append(i);
+	    return full();
+	}
+
+	public Output append(char c) {
+	    text.append(c);
+	    return full();
+	}
+
+	// hand the buffer to the I/O thread if it is full
+	private Output full() {
+	    if (text.length() >= buffer_size) {
+		check();
+		put(new Request(this, text, false));
+		text = takeSpare();
+	    }
+	    return this;
+	}
+
+	// the next spare buffer. if the I/O thread failed or stopped,
+	// no buffer will come back, so this throws instead.
+	private StringBuilder takeSpare() {
+	    try {
+		while (true) {
+		    StringBuilder b = (StringBuilder)
+			spare.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		    if (b != null) return b;
+		    boolean alive = thread.isAlive();
+		    check();
+		    if (!alive)
+			throw new RuntimeException("The AsyncWriter thread stopped");
+		}
+	    } catch (InterruptedException e) {
+		throw new RuntimeException(e);
+	    }
+	}
+
+	// write the rest of the file and close it
+	public void close() {
+	    check();
+	    put(new Request(this, text, true));
+	    text = null;
+	}
+    }
+}
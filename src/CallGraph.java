@@ -0,0 +1,387 @@
+import java.io.*;
+import java.util.*;
+
+// the call graph that ChaAnalysis computes, in compressed sparse row
+// form. the reachable methods (library methods included) are numbered
+// 0,1,2,... in the order in which the analysis discovered them, and
+// so are the call sites, method by method. all edges are then stored
+// in int arrays:
+//
+//   the sites of method m      are  site_start[m] .. site_start[m+1]-1
+//   the targets of site s      are  targets[target_start[s] .. target_start[s+1]-1]
+//   the callees of method m    are  callees[callee_start[m] .. callee_start[m+1]-1]
+//   the callers of method m    are  callers[caller_start[m] .. caller_start[m+1]-1]
+//
+// so every query is an array lookup, or a graph search over arrays.
+// the graph can be saved to a file (file "callgraph" in the output
+// directory of ChaMain) and queried later:
+//
+//   java CallGraph <file> callees|callers|reaches|reached-by|sites <method>
+//
+// where <method> is a method signature or index.
+
+public class CallGraph {
+
+    // the version of the saved file; bump when the layout changes
+    private static final int VERSION = 1;
+
+    // for each method: its signature, and its id from "rmethods" (0
+    // for library methods)
+    private String[] method_names;
+    private int[] method_ids;
+
+    // the sites of each method. for each site: its number x in the
+    // call site id "y_x", and its dense id from "sites" (-1 for
+    // sites in library methods). with library summaries (see
+    // LibrarySummaries), a library method has one site, number 0,
+    // with all its targets.
+    private int[] site_start;
+    private int[] site_number;
+    private int[] site_dense;
+
+    // the targets of each site
+    private int[] target_start;
+    private int[] targets;
+
+    // the distinct callees and callers of each method, in increasing
+    // order
+    private int[] callee_start;
+    private int[] callees;
+    private int[] caller_start;
+    private int[] callers;
+
+    // maps signatures to method indices; built on first use
+    private HashMap method_index = null;
+
+    private CallGraph() { }
+
+    // ------------------------------------------------------------
+    // the queries. methods and sites are given by their indices.
+
+    public int methodCount() { return method_names.length; }
+    public int siteCount() { return site_number.length; }
+
+    public String methodName(int m) { return method_names[m]; }
+
+    // the id of method m in "rmethods", or 0 for a library method
+    public int methodId(int m) { return method_ids[m]; }
+
+    // the index of the method with the given signature, or -1
+    public synchronized int methodIndex(String signature) {
+	if (method_index == null) {
+	    method_index = new HashMap();
+	    for (int m = 0; m < method_names.length; m++)
+		method_index.put(method_names[m], new Integer(m));
+	}
+	Integer m = (Integer) method_index.get(signature);
+	return (m == null) ? -1 : m.intValue();
+    }
+
+    // the sites of method m are siteStart(m) .. siteEnd(m)-1
+    public int siteStart(int m) { return site_start[m]; }
+    public int siteEnd(int m) { return site_start[m + 1]; }
+
+    // the method that contains site s
+    public int siteMethod(int s) {
+	// the last method whose first site is at most s; methods
+	// without sites share their start with the next method
+	int lo = 0, hi = method_names.length - 1;
+	while (lo < hi) {
+	    int mid = (lo + hi + 1) >>> 1;
+	    if (site_start[mid] <= s) lo = mid;
+	    else hi = mid - 1;
+	}
+	return lo;
+    }
+
+    // the call site id "y_x" of site s, or null for a site in a
+    // library method
+    public String siteName(int s) {
+	int m = siteMethod(s);
+	return (method_ids[m] == 0) ? null : method_ids[m] + "_" + site_number[s];
+    }
+
+    // the dense id of site s in "sites", or -1
+    public int siteDenseId(int s) { return site_dense[s]; }
+
+    public int[] siteTargets(int s) {
+	return Arrays.copyOfRange(targets, target_start[s], target_start[s + 1]);
+    }
+
+    public int[] callees(int m) {
+	return Arrays.copyOfRange(callees, callee_start[m], callee_start[m + 1]);
+    }
+
+    public int[] callers(int m) {
+	return Arrays.copyOfRange(callers, caller_start[m], caller_start[m + 1]);
+    }
+
+    // the methods that can be reached from m through calls (m itself
+    // only if it is on a cycle)
+    public BitSet reachableFrom(int m) {
+	return search(m, callee_start, callees);
+    }
+
+    // the methods from which m can be reached through calls
+    public BitSet reachingTo(int m) {
+	return search(m, caller_start, callers);
+    }
+
+    // a breadth-first search from m. 'queued' has m from the start,
+    // so every method enters the queue at most once; 'found' only
+    // gets m if a call leads back to it.
+    private BitSet search(int m, int[] start, int[] next) {
+	BitSet found = new BitSet(method_names.length);
+	BitSet queued = new BitSet(method_names.length);
+	int[] queue = new int[method_names.length];
+	int head = 0, tail = 0;
+	queue[tail++] = m;
+	queued.set(m);
+	while (head < tail) {
+	    int n = queue[head++];
+	    for (int k = start[n]; k < start[n + 1]; k++) {
+		int t = next[k];
+		found.set(t);
+		if (queued.get(t)) continue;
+		queued.set(t);
+		queue[tail++] = t;
+	    }
+	}
+	return found;
+    }
+
+    // ------------------------------------------------------------
+    // builds the graph while ChaAnalysis runs. methods are added in
+    // the order of discovery, and the sites of a method are added
+    // when it is processed, which happens in the same order.
+    public static class Builder {
+
+	private ArrayList names = new ArrayList();
+	private IntList ids = new IntList();
+	private HashMap index = new HashMap();
+
+	private IntList site_method = new IntList();
+	private IntList site_number = new IntList();
+	private IntList site_dense = new IntList();
+	private IntList target_start = new IntList();
+	private IntList targets = new IntList();
+
+	// a newly discovered method m with id 'id' from "rmethods"
+	public void addMethod(Object m, int id) {
+	    index.put(m, new Integer(names.size()));
+	    names.add(m.toString());
+	    ids.add(id);
+	}
+
+	// the next site of method m; dense_id is its id in "sites",
+	// or -1. the targets that follow belong to this site.
+	public void addSite(Object m, int number, int dense_id) {
+	    int owner = indexOf(m);
+	    if (site_method.size() > 0 &&
+		owner < site_method.get(site_method.size() - 1))
+		throw new IllegalStateException("Sites of " + m + " added out of order");
+	    site_method.add(owner);
+	    site_number.add(number);
+	    site_dense.add(dense_id);
+	    target_start.add(targets.size());
+	}
+
+	public void addTarget(Object m) {
+	    targets.add(indexOf(m));
+	}
+
+	private int indexOf(Object m) {
+	    Integer i = (Integer) index.get(m);
+	    if (i == null)
+		throw new IllegalStateException("Unknown method " + m);
+	    return i.intValue();
+	}
+
+	public CallGraph build() {
+	    int num_methods = names.size();
+	    int num_sites = site_method.size();
+
+	    CallGraph g = new CallGraph();
+	    g.method_names = (String[]) names.toArray(new String[num_methods]);
+	    g.method_ids = ids.toArray();
+	    g.site_number = site_number.toArray();
+	    g.site_dense = site_dense.toArray();
+	    target_start.add(targets.size());
+	    g.target_start = target_start.toArray();
+	    g.targets = targets.toArray();
+
+	    g.site_start = new int[num_methods + 1];
+	    for (int s = 0; s < num_sites; s++)
+		g.site_start[site_method.get(s) + 1]++;
+	    for (int m = 0; m < num_methods; m++)
+		g.site_start[m + 1] += g.site_start[m];
+
+	    g.computeCallees();
+	    return g;
+	}
+    }
+
+    // the callees and callers of each method, from the sites
+    private void computeCallees() {
+	int num_methods = method_names.length;
+
+	// the callees of each method, without duplicates
+	IntList list = new IntList();
+	callee_start = new int[num_methods + 1];
+	BitSet seen = new BitSet(num_methods);
+	int[] caller_count = new int[num_methods + 1];
+	for (int m = 0; m < num_methods; m++) {
+	    int first = list.size();
+	    for (int k = target_start[site_start[m]];
+		 k < target_start[site_start[m + 1]]; k++) {
+		int t = targets[k];
+		if (seen.get(t)) continue;
+		seen.set(t);
+		list.add(t);
+		caller_count[t + 1]++;
+	    }
+	    Arrays.sort(list.data, first, list.size());
+	    for (int k = first; k < list.size(); k++) seen.clear(list.get(k));
+	    callee_start[m + 1] = list.size();
+	}
+	callees = list.toArray();
+
+	// invert the callees; the callers of each method come out in
+	// increasing order
+	for (int m = 0; m < num_methods; m++)
+	    caller_count[m + 1] += caller_count[m];
+	caller_start = caller_count.clone();
+	callers = new int[callees.length];
+	int[] next = caller_count.clone();
+	for (int m = 0; m < num_methods; m++)
+	    for (int k = callee_start[m]; k < callee_start[m + 1]; k++)
+		callers[next[callees[k]]++] = m;
+    }
+
+    // a growable array of ints
+    private static class IntList {
+	int[] data = new int[16];
+	int size = 0;
+
+	void add(int x) {
+	    if (size == data.length) data = Arrays.copyOf(data, 2 * size);
+	    data[size++] = x;
+	}
+
+	int get(int i) { return data[i]; }
+	int size() { return size; }
+	int[] toArray() { return Arrays.copyOf(data, size); }
+    }
+
+    // ------------------------------------------------------------
+    // saving and loading. the callees and callers are not stored,
+    // since they are quickly computed again.
+    public void save(String file_name) throws IOException {
+	DataOutputStream out = new DataOutputStream
+	    (new BufferedOutputStream(new FileOutputStream(file_name), 1 << 16));
+	try {
+	    out.writeInt(VERSION);
+	    out.writeInt(method_names.length);
+	    for (int m = 0; m < method_names.length; m++)
+		out.writeUTF(method_names[m]);
+	    writeInts(out, method_ids);
+	    writeInts(out, site_start);
+	    writeInts(out, site_number);
+	    writeInts(out, site_dense);
+	    writeInts(out, target_start);
+	    writeInts(out, targets);
+	} finally {
+	    out.close();
+	}
+    }
+
+    public static CallGraph load(String file_name) throws IOException {
+	DataInputStream in = new DataInputStream
+	    (new BufferedInputStream(new FileInputStream(file_name), 1 << 16));
+	try {
+	    int version = in.readInt();
+	    if (version != VERSION)
+		throw new IOException(file_name + " has version " + version +
+				      ", expected " + VERSION);
+	    CallGraph g = new CallGraph();
+	    g.method_names = new String[in.readInt()];
+	    for (int m = 0; m < g.method_names.length; m++)
+		g.method_names[m] = in.readUTF();
+	    g.method_ids = readInts(in);
+	    g.site_start = readInts(in);
+	    g.site_number = readInts(in);
+	    g.site_dense = readInts(in);
+	    g.target_start = readInts(in);
+	    g.targets = readInts(in);
+	    g.computeCallees();
+	    return g;
+	} finally {
+	    in.close();
+	}
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+	out.writeInt(a.length);
+	for (int i = 0; i < a.length; i++) out.writeInt(a[i]);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+	int[] a = new int[in.readInt()];
+	for (int i = 0; i < a.length; i++) a[i] = in.readInt();
+	return a;
+    }
+
+    // ------------------------------------------------------------
+    // queries from the command line
+    public static void main(String[] args) throws IOException {
+	if (args.length != 3) {
+	    System.err.println("usage: java CallGraph <file> " +
+			       "callees|callers|reaches|reached-by|sites <method>");
+	    System.exit(1);
+	}
+	CallGraph g = load(args[0]);
+
+	int m = g.methodIndex(args[2]);
+	if (m == -1) {
+	    try {
+		m = Integer.parseInt(args[2]);
+	    } catch (NumberFormatException e) {
+		// not an index either
+	    }
+	}
+	if (m < 0 || m >= g.methodCount()) {
+	    System.err.println("No such method: " + args[2]);
+	    System.exit(1);
+	}
+
+	String query = args[1];
+	if (query.equals("callees"))
+	    printMethods(g, g.callees(m));
+	else if (query.equals("callers"))
+	    printMethods(g, g.callers(m));
+	else if (query.equals("reaches"))
+	    printMethods(g, g.reachableFrom(m));
+	else if (query.equals("reached-by"))
+	    printMethods(g, g.reachingTo(m));
+	else if (query.equals("sites")) {
+	    for (int s = g.siteStart(m); s < g.siteEnd(m); s++) {
+		String name = g.siteName(s);
+		System.out.println("site " + (name == null ? "#" + s : name) + ":");
+		printMethods(g, g.siteTargets(s));
+	    }
+	} else {
+	    System.err.println("Unknown query: " + query);
+	    System.exit(1);
+	}
+    }
+
+    private static void printMethods(CallGraph g, int[] methods) {
+	for (int i = 0; i < methods.length; i++)
+	    System.out.println("    " + methods[i] + ": " + g.methodName(methods[i]));
+    }
+
+    private static void printMethods(CallGraph g, BitSet methods) {
+	for (int m = methods.nextSetBit(0); m >= 0; m = methods.nextSetBit(m + 1))
+	    System.out.println("    " + m + ": " + g.methodName(m));
+    }
+}
@@ -3,6 +3,8 @@ import soot.*;
 import soot.util.*;
 import soot.jimple.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
 
 public class ChaAnalysis {
 
@@ -26,8 +28,12 @@ public class ChaAnalysis {
     // output files. it will be invoked periodically by ChaAnalysis.
     private ChaWriter writer;
 
+    // the directory of the output files
+    private String output_dir;
+
     // create and initialize the writer
     public void setOutputDir(String dir_name) {
+	output_dir = dir_name;
 	writer = new ChaWriter(dir_name,hierarchy);
     }
     
@@ -36,13 +42,72 @@ public class ChaAnalysis {
     // used throughout the analysis
     private Hierarchy hierarchy = new Hierarchy();
 
+    Hierarchy hierarchy() { return hierarchy; }
+
     // ---------------------------------------------------------
     // worklist (which is basically a queue) that stores reachable
     // methods whose bodies have to be processed. this workist is used
     // during the call graph construction, similarly to what happens
     // in CHA as we discussed in class. implemented by a standard
-    // library class java.util.ArrayList. 
-    private ArrayList worklist = new ArrayList(); 
+    // library class java.util.ArrayDeque, which (unlike an ArrayList)
+    // removes its head in constant time.
+    private ArrayDeque worklist = new ArrayDeque(); 
+
+    // ---------------------------------------------------------
+    // with -Dcha.threads=N for N > 1, the analysis runs in two
+    // steps. first, N threads find all reachable methods and
+    // summarize their bodies in parallel (see Discover). then the
+    // usual breadth-first worklist runs on the precomputed
+    // summaries; it no longer touches any bodies, and because it
+    // is the same sequential loop, the method ids, the site ids and
+    // the output files are identical to those of a sequential run.
+    // (with -Dloader.lazy=true, the bodies are summarized one at a
+    // time; see summarize().)
+    private int threads = Integer.getInteger("cha.threads", 1).intValue();
+
+    // the summaries of the methods summarized so far, so that each
+    // body is summarized once: RTA, the worklist and the report of
+    // RTA all go through the same methods. the parallel step fills
+    // it first.
+    private ConcurrentHashMap summaries = new ConcurrentHashMap();
+
+    // with -Dcha.cache=<file>, the summaries are also kept in a file
+    // from one run to the next, and the summaries of classes that
+    // did not change are reused (see ChaCache). null if there is no
+    // cache. this only saves time with -Dloader.lazy=true, where the
+    // bodies of the reused summaries are never built.
+    private ChaCache cache = null;
+
+    // with -Dcha.libsummaries=<file>, library methods are not
+    // analyzed from their bodies; their precomputed call summaries
+    // are used instead (see LibrarySummaries). null if there are no
+    // library summaries. (not with RTA, since the summaries don't
+    // record instantiated classes.)
+    private LibrarySummaries library = null;
+
+    // ---------------------------------------------------------
+    // with -Dcha.rta=true, the analysis is a Rapid Type Analysis:
+    // the receiver classes of a virtual call are only the classes
+    // that reachable code instantiates (see rta()), instead of all
+    // subclasses of the compile-time type. the output files are the
+    // same as with CHA, with fewer receivers and edges, and file
+    // "rta.report" compares the sizes of both call graphs.
+    private boolean use_rta = Boolean.getBoolean("cha.rta");
+
+    // the classes instantiated by the reachable code. null with CHA,
+    // and while rta() computes it.
+    private Set instantiated = null;
+
+    // with -Dcha.clinit.demand=true, the <clinit> of a class only
+    // becomes reachable when reachable code uses the class the way
+    // that makes the JVM initialize it (see initializers()), instead
+    // of the <clinit> of every class being a root. classes that are
+    // only initialized through reflection are missed.
+    private boolean clinit_on_demand = Boolean.getBoolean("cha.clinit.demand");
+
+    // the roots of the analysis, and the report of RTA
+    private List roots;
+    private String rta_report = null;
 
     // ----------------------------------------------------------
 
@@ -51,21 +116,45 @@ public class ChaAnalysis {
     // unique integer identifier for M. There ids are written to file
     // rmethods, and are later used for the instrumentation. Since we
     // don't care about instrumenting library methods, all such
-    // methods are assigned id = 0. 
-    private Hashtable reachable_methods = new Hashtable();
+    // methods are assigned id = 0. the table keeps the methods in
+    // the order in which they were discovered, so that the output
+    // does not depend on hash codes.
+    private LinkedHashMap reachable_methods = new LinkedHashMap();
 
     // this is a counter used to assign ids to the reachable
     // non-library methods
     private int method_id = 1;
 
+    // a counter used to assign dense ids (0,1,2,...) to the call
+    // sites inside reachable non-library methods. the
+    // instrumentation passes these ids to RuntimeTracker, which
+    // uses them as indices into its coverage arrays
+    private int site_id = 0;
+
+    // counters for the metrics (see Metrics): all call sites in
+    // reachable methods, the virtual ones among them, and the sum of
+    // the receiver classes of the virtual ones, which is the number
+    // of calls to Hierarchy.virtualDispatch
+    private int call_sites = 0;
+    private int virtual_calls = 0;
+    private long receiver_classes = 0;
+
+    // the call graph, built as the analysis finds the edges. it
+    // contains all reachable methods, library methods included, and
+    // all call sites in them. see CallGraph.
+    private CallGraph.Builder graph = new CallGraph.Builder();
+    private CallGraph call_graph = null;
+
     // --------------------------------------------------------------
     // a helper method for adding a newly-discovered reachable method
     // to the end of the worklist. this schedules the method for
     // processing in the future.
     private void addToWorklist(SootMethod m) {
 
-	// we only add methods that haven't been discovered yet
-	if (reachable_methods.containsKey(m)) return;
+	// we only add methods that haven't been discovered yet. (a
+	// null target means that dispatch found no method, which
+	// only happens for broken class files.)
+	if (m == null || reachable_methods.containsKey(m)) return;
 
 	// add at the end of the worklist
 	worklist.add(m);
@@ -79,6 +168,7 @@ public class ChaAnalysis {
 	    reachable_methods.put(m, new Integer(method_id++));
 	else
 	    reachable_methods.put(m, new Integer(0));
+	graph.addMethod(m, getMethodId(m));
 
 	// Here need to take into account finalizers: if the added
 	// method is a constructor, and if the class has a finalizer
@@ -87,41 +177,84 @@ public class ChaAnalysis {
 	// create an object, later the JVM will call the finalizer
 	// when destroying the object.
 
+	SootMethod fnl = finalizerOf(m);
+	if (fnl != null) addToWorklist(fnl);
+    }
+
+    // the finalizer that becomes reachable with method m: if m is a
+    // constructor and its class declares finalize(), then finalize()
+    private static SootMethod finalizerOf(SootMethod m) {
 	if (m.getName().equals("<init>") &&
-	    m.getDeclaringClass().declaresMethod("void finalize()") ) {
-	    SootMethod fnl =
-		m.getDeclaringClass().getMethod("void finalize()");
-	    addToWorklist(fnl);
-	}
+	    m.getDeclaringClass().declaresMethod("void finalize()") )
+	    return m.getDeclaringClass().getMethod("void finalize()");
+	return null;
     }
 
     // -------------------------------------
     // the top-level control for the analysis
     public void analyze() {
 	
+	String cache_file = System.getProperty("cha.cache");
+	if (cache_file != null) {
+	    if (!Loader.isLazy())
+		System.out.println("Warning: -Dcha.cache only saves building bodies " +
+				   "with -Dloader.lazy=true; all bodies were built");
+	    cache = new ChaCache(cache_file, Scene.v().getSootClassPath());
+	}
+
 	// the list of all classes, including library classes
 	Chain allClasses = Scene.v().getApplicationClasses();
 
 	// initialize the data structures related to the class hierarchy
 	hierarchy.initialize(allClasses);
 
+	String library_file = System.getProperty("cha.libsummaries");
+	if (library_file != null && use_rta) {
+	    System.out.println("Ignoring library summaries with RTA");
+	} else if (library_file != null) {
+	    ArrayList library_classes = new ArrayList();
+	    for (Iterator it = allClasses.iterator(); it.hasNext();) {
+		SootClass c = (SootClass) it.next();
+		if (!hierarchy.notLibrary(c)) library_classes.add(c);
+	    }
+	    library = new LibrarySummaries(library_file, Scene.v().getSootClassPath(),
+					   library_classes, clinit_on_demand);
+	}
+
 	// everything starts with "main"
-	addToWorklist(main_method);
+	roots = new ArrayList();
+	roots.add(main_method);
 
 	// we also have to take into account the initialization of
 	// static fields in all classes. these initializations are in
 	// artificial static methods called <clinit> which are created
 	// by the java compiler. there are no explicit calls to
 	// <clinit>, but the JVM does invoke them whenever it loads a
-	// class. for now, we will just make all <clinit> methods
+	// class. by default, we will just make all <clinit> methods
 	// reachable; this is overly conservative, but quite simple.
-	for (Iterator it = allClasses.iterator(); it.hasNext();) {
-	    SootClass c = (SootClass) it.next();
-	    if (c.declaresMethod("void <clinit>()")) {
-		SootMethod class_init = c.getMethod("void <clinit>()");
-		addToWorklist(class_init);
-            }
-        }
+	// on demand, only the main class is initialized up front.
+	if (clinit_on_demand) {
+	    roots.addAll(initializers(main_method.getDeclaringClass()));
+	} else {
+	    for (Iterator it = allClasses.iterator(); it.hasNext();) {
+		SootClass c = (SootClass) it.next();
+		if (c.declaresMethod("void <clinit>()")) {
+		    SootMethod class_init = c.getMethod("void <clinit>()");
+		    roots.add(class_init);
+		}
+	    }
+	}
+
+	// in parallel mode, summarize all reachable methods first. (with
+	// RTA, these are the methods that CHA finds reachable.)
+	if (threads > 1) discoverParallel(roots);
+
+	// with RTA, find the instantiated classes first; then the
+	// worklist below runs as usual, with fewer receiver classes
+	if (use_rta) instantiated = rta(roots);
+
+	for (Iterator it = roots.iterator(); it.hasNext();)
+	    addToWorklist((SootMethod) it.next());
 
 	// once the worklist in initialized with "main" and <clinit>,
 	// start processing. this implements breadth-first
@@ -129,21 +262,437 @@ public class ChaAnalysis {
 
 	while (worklist.size() != 0) {
 
-	    // remove the 0-th element (head) of the worklist. 
-	    SootMethod m = (SootMethod) worklist.remove(0);
+	    // remove the head of the worklist. 
+	    SootMethod m = (SootMethod) worklist.removeFirst();
 	    
 	    // process the body of the method, and find what methods
 	    // it calls
 	    processMethod(m);
 	}
 
+	if (use_rta) rta_report = compare();
+
     } // end of analyze()
 
+    // ---------------------------------------------------------
+    // the parallel step: starting from the roots, find all reachable
+    // methods and put their summaries in 'summaries'. every method
+    // is a fork-join task that summarizes the body and forks a task
+    // for each callee that no other task has claimed yet; idle
+    // threads steal tasks from busy ones. the set of reachable
+    // methods is the same as in the sequential loop, since both
+    // follow the same calls (see successors()).
+    private void discoverParallel(List roots) {
+	Set discovered = Collections.newSetFromMap(new ConcurrentHashMap());
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	try {
+	    pool.invoke(new Discover(null, null, roots, discovered));
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    // the task for one method m (or, for the root task, for the list
+    // of roots). it completes once all the tasks it forked did.
+    private class Discover extends CountedCompleter {
+	private final SootMethod m;
+	private final List roots;
+	private final Set discovered;
+
+	Discover(CountedCompleter parent, SootMethod m, List roots,
+		 Set discovered) {
+	    super(parent);
+	    this.m = m;
+	    this.roots = roots;
+	    this.discovered = discovered;
+	}
+
+	public void compute() {
+	    if (m == null) {
+		for (Iterator it = roots.iterator(); it.hasNext();)
+		    discover((SootMethod) it.next());
+	    } else if (library != null && !hierarchy.notLibrary(m)) {
+		for (Iterator it = librarySuccessors(m).iterator(); it.hasNext();)
+		    discover((SootMethod) it.next());
+	    } else {
+		MethodSummary summary = summarize(m);
+		if (summary != null) {
+		    for (Iterator it = successors(summary).iterator(); it.hasNext();)
+			discover((SootMethod) it.next());
+		}
+	    }
+	    tryComplete();
+	}
+
+	private void discover(SootMethod t) {
+	    if (t == null || !discovered.add(t)) return;
+	    addToPendingCount(1);
+	    new Discover(this, t, null, discovered).fork();
+	    discover(finalizerOf(t));
+	}
+    }
+
+    // the methods that processCall adds to the worklist for the calls
+    // in a summary (not counting finalizers, which addToWorklist adds)
+    private List successors(MethodSummary summary) {
+	ArrayList result = new ArrayList();
+	for (int i = 0; i < summary.calls.length; i++) {
+	    MethodSummary.Call call = summary.calls[i];
+	    if (call.kind == MethodSummary.SIMPLE)
+		result.add(call.target);
+	    else if (call.kind == MethodSummary.VIRTUAL)
+		result.addAll(Arrays.asList(dispatch(call, receivers(call.receiver))));
+	}
+	result.addAll(initializers(summary));
+	return result;
+    }
+
+    // ---------------------------------------------------------
+    // with library summaries: the methods that library method m
+    // calls. these are the targets in its summary, and the targets
+    // of its escaping calls for application receivers (and for
+    // library receivers that the summaries don't cover). if m has no
+    // summary yet, it is computed from the body and recorded.
+    private List librarySuccessors(SootMethod m) {
+	LibrarySummaries.Entry entry = library.lookup(m);
+	if (entry == null) {
+	    MethodSummary summary = summarize(m);
+	    if (summary == null) return Collections.EMPTY_LIST;
+	    entry = condense(summary);
+	    library.put(m, entry);
+	}
+
+	LinkedHashSet result = new LinkedHashSet(Arrays.asList(entry.targets));
+	for (int i = 0; i < entry.escapes.length; i++) {
+	    MethodSummary.Call call = entry.escapes[i];
+	    int subsig = hierarchy.subsignatureId(call.target);
+	    Set possible = hierarchy.possibleReceiverClasses(call.receiver);
+	    for (Iterator cIt = possible.iterator(); cIt.hasNext();) {
+		SootClass c = (SootClass) cIt.next();
+		if (hierarchy.notLibrary(c) || library.dispatchedLive(c))
+		    result.add(hierarchy.virtualDispatch(subsig, c));
+	    }
+	}
+	result.remove(null);
+	return new ArrayList(result);
+    }
+
+    // the library summary of the body of a library method: its calls
+    // dispatched on the library classes, and the calls that can go
+    // to classes outside the library
+    private LibrarySummaries.Entry condense(MethodSummary summary) {
+	LinkedHashSet targets = new LinkedHashSet();
+	ArrayList escapes = new ArrayList();
+	HashSet escape_keys = new HashSet();
+	for (int i = 0; i < summary.calls.length; i++) {
+	    MethodSummary.Call call = summary.calls[i];
+	    if (call.kind == MethodSummary.SIMPLE) {
+		targets.add(call.target);
+	    } else if (call.kind == MethodSummary.VIRTUAL) {
+		int subsig = hierarchy.subsignatureId(call.target);
+		Set possible = hierarchy.possibleReceiverClasses(call.receiver);
+		for (Iterator cIt = possible.iterator(); cIt.hasNext();) {
+		    SootClass c = (SootClass) cIt.next();
+		    if (!hierarchy.notLibrary(c))
+			targets.add(hierarchy.virtualDispatch(subsig, c));
+		}
+		if (!Modifier.isFinal(call.receiver.getModifiers()) &&
+		    escape_keys.add(call.receiver.getName() + "." +
+				    call.target.getSubSignature()))
+		    escapes.add(call);
+	    }
+	}
+	targets.addAll(initializers(summary));
+	targets.remove(null);
+	return new LibrarySummaries.Entry
+	    ((SootMethod[]) targets.toArray(new SootMethod[targets.size()]),
+	     (MethodSummary.Call[]) escapes.toArray(new MethodSummary.Call[escapes.size()]));
+    }
+
+    // ---------------------------------------------------------
+    // the <clinit> methods that running the body of a summary may
+    // trigger, with on-demand <clinit>: the JVM initializes a class
+    // when it is instantiated, or when one of its static methods or
+    // fields is used. (empty if all <clinit> methods are roots.)
+    private List initializers(MethodSummary summary) {
+	if (!clinit_on_demand) return Collections.EMPTY_LIST;
+	ArrayList result = new ArrayList();
+	for (int i = 0; i < summary.initialized.length; i++)
+	    result.addAll(initializers(summary.initialized[i]));
+	return result;
+    }
+
+    // the <clinit> methods that run when class c is initialized:
+    // those of its superclasses first, then its own
+    private static List initializers(SootClass c) {
+	LinkedList result = new LinkedList();
+	for (; c != null; c = c.hasSuperclass() ? c.getSuperclass() : null)
+	    if (c.declaresMethod("void <clinit>()"))
+		result.addFirst(c.getMethod("void <clinit>()"));
+	return result;
+    }
+
+    // ---------------------------------------------------------
+    // the possible run-time classes of a receiver whose compile-time
+    // type is static_class: with CHA, all non-abstract subclasses of
+    // static_class (and static_class itself); with RTA, only those
+    // that are instantiated. either way in the order of the class
+    // hierarchy, so the output is deterministic.
+    private Set receivers(SootClass static_class) {
+	Set possible = hierarchy.possibleReceiverClasses(static_class);
+	if (instantiated == null) return possible;
+
+	LinkedHashSet result = new LinkedHashSet();
+	for (Iterator cIt = possible.iterator(); cIt.hasNext();) {
+	    Object c = cIt.next();
+	    if (instantiated.contains(c)) result.add(c);
+	}
+	return result;
+    }
+
+    // the fixpoint of RTA: starting from the roots, find the reachable
+    // methods and the classes they instantiate, where a virtual call
+    // only reaches the targets for the classes instantiated so far.
+    // a class is instantiated by a new expression (or a string
+    // constant) in a reachable method, or by a reachable constructor.
+    // when new classes show up, the virtual calls seen so far are
+    // dispatched again for them, until nothing changes. returns the
+    // instantiated classes.
+    private Set rta(List roots) {
+	Rta rta = new Rta();
+	for (Iterator it = roots.iterator(); it.hasNext();)
+	    rta.reach((SootMethod) it.next());
+	rta.run();
+	return rta.instantiated;
+    }
+
+    private class Rta {
+	HashSet reached = new HashSet();
+	ArrayDeque todo = new ArrayDeque();
+	HashSet instantiated = new HashSet();
+
+	// the classes instantiated since the last pass over 'calls'
+	ArrayList fresh = new ArrayList();
+
+	// the virtual calls seen so far, one per receiver type and
+	// target subsignature
+	ArrayList calls = new ArrayList();
+	HashSet call_keys = new HashSet();
+
+	void reach(SootMethod m) {
+	    if (m == null || !reached.add(m)) return;
+	    todo.add(m);
+	    if (m.getName().equals("<init>")) instantiate(m.getDeclaringClass());
+	    reach(finalizerOf(m));
+	}
+
+	void instantiate(SootClass c) {
+	    if (instantiated.add(c)) fresh.add(c);
+	}
+
+	void run() {
+	    while (true) {
+		while (todo.size() != 0) {
+		    MethodSummary summary = summarize((SootMethod) todo.removeFirst());
+		    if (summary == null) continue;
+		    for (int i = 0; i < summary.allocated.length; i++)
+			instantiate(summary.allocated[i]);
+		    for (Iterator it = initializers(summary).iterator(); it.hasNext();)
+			reach((SootMethod) it.next());
+		    for (int i = 0; i < summary.calls.length; i++) {
+			MethodSummary.Call call = summary.calls[i];
+			if (call.kind == MethodSummary.SIMPLE)
+			    reach(call.target);
+			else if (call.kind == MethodSummary.VIRTUAL)
+			    virtualCall(call);
+		    }
+		}
+		if (fresh.isEmpty()) break;
+
+		// dispatch the calls seen so far on the new classes
+		ArrayList batch = fresh;
+		fresh = new ArrayList();
+		for (Iterator it = calls.iterator(); it.hasNext();) {
+		    MethodSummary.Call call = (MethodSummary.Call) it.next();
+		    Set possible = hierarchy.possibleReceiverClasses(call.receiver);
+		    int subsig = hierarchy.subsignatureId(call.target);
+		    for (Iterator cIt = batch.iterator(); cIt.hasNext();) {
+			SootClass c = (SootClass) cIt.next();
+			if (possible.contains(c))
+			    reach(hierarchy.virtualDispatch(subsig, c));
+		    }
+		}
+	    }
+	}
+
+	void virtualCall(MethodSummary.Call call) {
+	    if (call_keys.add(call.receiver.getName() + "." +
+			      call.target.getSubSignature()))
+		calls.add(call);
+	    Set possible = hierarchy.possibleReceiverClasses(call.receiver);
+	    int subsig = hierarchy.subsignatureId(call.target);
+	    for (Iterator cIt = possible.iterator(); cIt.hasNext();) {
+		SootClass c = (SootClass) cIt.next();
+		if (instantiated.contains(c))
+		    reach(hierarchy.virtualDispatch(subsig, c));
+	    }
+	}
+    }
+
+    // ---------------------------------------------------------
+    // the report of RTA: the sizes of the call graph of this run, and
+    // of the one that plain CHA would build. the CHA graph is only
+    // explored, from the summaries that are already there: with
+    // -Dloader.lazy=true, the bodies of the methods that only CHA
+    // reaches were never built, and they are not built for this
+    // either. the calls of these methods are left out, so the CHA
+    // column is then a lower bound. (in parallel mode, the parallel
+    // step already summarized all the methods that CHA reaches.)
+    private String compare() {
+	Set saved = instantiated;
+	instantiated = null;
+	long[] cha = graphSize();
+	instantiated = saved;
+	long[] rta = graphSize();
+
+	String[] rows = { "reachable methods", "non-library methods",
+			  "call sites", "instrumented call sites",
+			  "call edges", "instrumented call edges",
+			  "virtual call receivers" };
+	StringBuffer report = new StringBuffer();
+	report.append(pad("", 26) + pad("CHA", 12) + pad("RTA", 12) + "RTA/CHA\n");
+	for (int i = 0; i < rows.length; i++)
+	    report.append(pad(rows[i], 26) + pad(String.valueOf(cha[i]), 12) +
+			  pad(String.valueOf(rta[i]), 12) +
+			  ((cha[i] == 0) ? "-" : (100 * rta[i] / cha[i]) + "%") + "\n");
+	report.append("instantiated classes: " + instantiated.size() + "\n");
+	if (cha[7] != 0)
+	    report.append("CHA is a lower bound: the calls of " + cha[7] +
+			  " methods without bodies (lazy loading) are left out\n");
+	return report.toString();
+    }
+
+    // the sizes of the call graph from the roots, with the current
+    // receivers(): the reachable methods, the non-library ones, the
+    // call sites in all of them and in the non-library ones, the
+    // edges from those call sites (one per site and target), the
+    // receiver classes of all virtual calls, and the reachable
+    // methods whose calls are left out because they have no summary
+    // and no body yet (see compare())
+    private long[] graphSize() {
+	long[] size = new long[8];
+	HashSet reached = new HashSet();
+	ArrayDeque todo = new ArrayDeque();
+	for (Iterator it = roots.iterator(); it.hasNext();) {
+	    SootMethod m = (SootMethod) it.next();
+	    if (reached.add(m)) todo.add(m);
+	}
+	while (todo.size() != 0) {
+	    SootMethod m = (SootMethod) todo.removeFirst();
+	    boolean not_library = hierarchy.notLibrary(m);
+	    size[0]++;
+	    if (not_library) size[1]++;
+
+	    ArrayList next = new ArrayList();
+	    next.add(finalizerOf(m));
+	    MethodSummary summary = null;
+	    if (summaries.containsKey(m) || !Loader.isLazy() || m.hasActiveBody())
+		summary = summarize(m);
+	    else if (!m.isNative() && !m.isAbstract())
+		size[7]++;
+	    if (summary != null) next.addAll(initializers(summary));
+	    for (int i = 0; summary != null && i < summary.calls.length; i++) {
+		MethodSummary.Call call = summary.calls[i];
+		HashSet targets = new HashSet();
+		if (call.kind == MethodSummary.SIMPLE)
+		    targets.add(call.target);
+		else if (call.kind == MethodSummary.VIRTUAL) {
+		    Set possible = receivers(call.receiver);
+		    size[6] += possible.size();
+		    targets.addAll(Arrays.asList(dispatch(call, possible)));
+		    targets.remove(null);
+		}
+		size[2]++;
+		size[4] += targets.size();
+		if (not_library) {
+		    size[3]++;
+		    size[5] += targets.size();
+		}
+		next.addAll(targets);
+	    }
+	    for (Iterator it = next.iterator(); it.hasNext();) {
+		SootMethod t = (SootMethod) it.next();
+		if (t != null && reached.add(t)) todo.add(t);
+	    }
+	}
+	return size;
+    }
+
+    private static String pad(String s, int width) {
+	StringBuffer result = new StringBuffer(s);
+	while (result.length() < width) result.append(' ');
+	return result.toString();
+    }
+
+    // the summary of the body of m, or null if m has no body. it is
+    // computed once and kept in 'summaries' (in parallel mode, by the
+    // parallel step). with a cache, the body is only needed if the
+    // class of m changed.
+    private MethodSummary summarize(SootMethod m) {
+
+	// native methods and abstract methods do not have bodies
+	if(m.isNative() || m.isAbstract()) return null;
+
+	MethodSummary summary = (MethodSummary) summaries.get(m);
+	if (summary != null) return summary;
+
+	// in lazy mode, the other threads of the parallel step may be
+	// building bodies, which changes the Scene; MethodSummary.of
+	// and the cache read it (they resolve classes, methods and
+	// fields), so they run under the lock of body building. only
+	// finding the successors stays parallel then.
+	if (threads > 1 && Loader.isLazy()) {
+	    synchronized (Loader.scene_lock) {
+		summary = summarizeBody(m);
+	    }
+	} else {
+	    summary = summarizeBody(m);
+	}
+	summaries.put(m, summary);
+	return summary;
+    }
+
+    private MethodSummary summarizeBody(SootMethod m) {
+	if (cache == null) return MethodSummary.of(Loader.bodyOf(m));
+
+	MethodSummary summary = cache.lookup(m);
+	boolean was_cached = summary != null;
+	if (!was_cached) summary = MethodSummary.of(Loader.bodyOf(m));
+	cache.put(m, summary, was_cached);
+	return summary;
+    }
+
     // ---------------------------------------
     private void processMethod(SootMethod m) {
 
-	// native methods and abstract methods do not have bodies
-	if(m.isNative() || m.isAbstract()) return;
+	// library methods have nothing to write; with library
+	// summaries, only their targets matter. in the call graph,
+	// they all go to one site with number 0.
+	if (library != null && !hierarchy.notLibrary(m)) {
+	    List targets = librarySuccessors(m);
+	    if (!targets.isEmpty()) graph.addSite(m, 0, -1);
+	    for (Iterator it = targets.iterator(); it.hasNext();) {
+		SootMethod t = (SootMethod) it.next();
+		addToWorklist(t);
+		graph.addTarget(t);
+	    }
+	    return;
+	}
+
+	// go through all calls in the body. native methods and
+	// abstract methods do not have bodies
+	MethodSummary summary = summarize(m);
+	if (summary == null) return;
 
 	// debugging print
 	// System.out.println("---- Processing " + m);
@@ -156,29 +705,27 @@ public class ChaAnalysis {
 	// methods. these ids are written in files "calls" and "edges"
 	int site_number = 1;
 
-	// go through all statements in the body
-	for (Iterator uIt = m.getActiveBody().getUnits().iterator();
-	     uIt.hasNext();) {
-	 
-	    // a Soot object representing a JIMPLE statement
-	    Stmt s = (Stmt) uIt.next();
-
-	    // debugging print
-	    // System.out.println(s);
-
-	    // not all statements have calls inside them. if there
-	    // isn't a call, we jut go to the next statement
-	    if ( ! s.containsInvokeExpr() ) continue;
+	for (int i = 0; i < summary.calls.length; i++) {
 
-	    // get a Soot object that represents the call expression
-	    InvokeExpr call = (InvokeExpr) s.getInvokeExpr();
+	    // a summary of the call expression
+	    MethodSummary.Call call = summary.calls[i];
 
 	    // create and id for the call. for the x-th call in method
 	    // with method_id=y, the id is "y_x"
 	    String call_site_id = getMethodId(m) + "_" + site_number;
+	    boolean not_library = hierarchy.notLibrary(m);
+	    graph.addSite(m, site_number, not_library ? site_id : -1);
+	    if (not_library)
+		writer.writeSite(site_id++, call_site_id);
 	    processCall(call,m,call_site_id);
+	    call_sites++;
 	    site_number++;
 	}
+
+	// with on-demand <clinit>, the initializers of the classes
+	// that the body uses become reachable too
+	for (Iterator it = initializers(summary).iterator(); it.hasNext();)
+	    addToWorklist((SootMethod) it.next());
 	    
     }
     
@@ -188,7 +735,24 @@ public class ChaAnalysis {
     }
 
     // -----------------------------------------------------
-    private void processCall(InvokeExpr call,SootMethod m, 
+    // the run-time target of 'call' for each receiver class in
+    // 'possible', in the order of 'possible'
+    private SootMethod[] dispatch(MethodSummary.Call call, Set possible) {
+	SootMethod[] result = new SootMethod[possible.size()];
+
+	// dispatch looks methods up by the id of their
+	// subsignature, so get it once for all receiver classes
+	int subsig = hierarchy.subsignatureId(call.target);
+
+	int i = 0;
+	for (Iterator cIt = possible.iterator(); cIt.hasNext();)
+	    result[i++] = hierarchy.virtualDispatch(subsig,(SootClass) cIt.next());
+	return result;
+    }
+
+    // -----------------------------------------------------
+    // (package-private for the benchmarks in bench/)
+    void processCall(MethodSummary.Call call,SootMethod m, 
 			     String call_site_id) {
 
 	// need to determine the potential run-time targets of the
@@ -200,39 +764,26 @@ public class ChaAnalysis {
 	// compile-time target and the run-time target are the same,
 	// so we just label the compile-time target as reachable and
 	// add it to the worklist
-	if (call instanceof StaticInvokeExpr || 
-	    call instanceof SpecialInvokeExpr) {
-	    SootMethod static_target = call.getMethod();
+	if (call.kind == MethodSummary.SIMPLE) {
+	    SootMethod static_target = call.target;
 	    addToWorklist(static_target);
-	    writer.writeSimpleCall(call,call_site_id,
+	    graph.addTarget(static_target);
+	    writer.writeSimpleCall(call.text,call_site_id,
 				   getMethodId(static_target),m);
 	    return;
 	}
 
 	// ---------------------------------------------------------------
-	// CASE 2: a virtual call: either virtualinvoke or interfaceinvoke
-	if (call instanceof VirtualInvokeExpr ||
-	    call instanceof InterfaceInvokeExpr) {
-
-	    // the compile-time target method of the call
-	    SootMethod static_target = call.getMethod();
-
-	    // determine the expression that is used for the
-	    // receiver. for example, if the call is "x.m()", we want
-	    // to get access to x.
-	    Value receiver_expr = ((InstanceInvokeExpr)call).getBase();
-
-	    // the compile-time type of the receiver expression
-	    Type static_type = receiver_expr.getType();
-
-	    // don't worry about this: just a small detail related to
-	    // arrays
-	    if (! (static_type instanceof RefType)) return;
+	// CASE 2: a virtual call: either virtualinvoke or
+	// interfaceinvoke. (calls on arrays are OTHER calls, and
+	// there is nothing to do for them.)
+	if (call.kind == MethodSummary.VIRTUAL) {
 
-	    // The type corresponds to a particular class/interface in
-	    // the class hierarchy. This class/interface is
-	    // represented by a SootClass object.
-	    SootClass static_class = ((RefType) static_type).getSootClass();
+	    // The compile-time type of the receiver expression
+	    // corresponds to a particular class/interface in the
+	    // class hierarchy. This class/interface is represented by
+	    // a SootClass object.
+	    SootClass static_class = call.receiver;
 
 	    // At run time, the actual class of the receiver object
 	    // could potentially be any non-abstract class that is a
@@ -241,20 +792,24 @@ public class ChaAnalysis {
 	    // possibility and determine the run-time target method
 	    // that corresponds to that particular receiver class.
 
-	    HashSet possible = hierarchy.possibleReceiverClasses(static_class);
+	    Set possible = receivers(static_class);
+	    virtual_calls++;
+	    receiver_classes += possible.size();
 
 	    // temporary set for gathering the outgoing call
-	    // edges.
-	    HashSet targets = new HashSet();
+	    // edges. it keeps the targets in the order in which they
+	    // are found, which makes the output deterministic.
+	    LinkedHashSet targets = new LinkedHashSet();
 
-	    for (Iterator cIt = possible.iterator(); cIt.hasNext();) {
+	    // If at run time the receiver class is "runtime_class", 
+	    // which method will be the run-time target? dispatched[i]
+	    // is the answer for the i-th class in 'possible'.
+	    SootMethod[] dispatched = dispatch(call, possible);
 
-		SootClass runtime_class = (SootClass) cIt.next();
+	    for (int i = 0; i < dispatched.length; i++) {
 
-		// If at run time the receiver class is "runtime_class", 
-		// which method will be the run-time target?
-		SootMethod runtime_target =
-		    hierarchy.virtualDispatch(static_target,runtime_class);
+		SootMethod runtime_target = dispatched[i];
+		if (runtime_target == null) continue;
 
 		targets.add(runtime_target);
 
@@ -269,11 +824,12 @@ public class ChaAnalysis {
 	    // write info to output file, including the # of receiver
 	    // classes and the # of target methods, plus the set of
 	    // all possible target methods
-	    writer.writeComplexCall(call,call_site_id,
+	    writer.writeComplexCall(call.text,call_site_id,
 				    possible.size(),
 				    targets.size());
 	    for (Iterator mIt = targets.iterator(); mIt.hasNext();) {
 		SootMethod t = (SootMethod) mIt.next();
+		graph.addTarget(t);
 		writer.writeTarget(call_site_id,t,getMethodId(t));
 	    }
 	    
@@ -282,10 +838,11 @@ public class ChaAnalysis {
 	    // receiver. ChaWriter makes sure that we only print edges
 	    // for which both the caller are the callee are inside the
 	    // CUT
-	    for (Iterator cIt = possible.iterator(); cIt.hasNext();) {
+	    int i = 0;
+	    for (Iterator cIt = possible.iterator(); cIt.hasNext(); i++) {
 		SootClass runtime_class = (SootClass) cIt.next();
-		SootMethod runtime_target =
-		    hierarchy.virtualDispatch(static_target,runtime_class);
+		SootMethod runtime_target = dispatched[i];
+		if (runtime_target == null) continue;
 		writer.writeAnnotatedEdge(call_site_id,
 					  m,runtime_target,
 					  getMethodId(runtime_target),
@@ -295,6 +852,29 @@ public class ChaAnalysis {
 	}
     }
 
+    // ------------------------------------
+    // add the counters of the analysis to 'metrics'
+    public void reportMetrics(Metrics metrics) {
+	metrics.count("classes", Scene.v().getApplicationClasses().size());
+	metrics.count("reachable_methods", reachable_methods.size());
+	metrics.count("numbered_methods", method_id - 1);
+	metrics.count("call_sites", call_sites);
+	metrics.count("instrumented_sites", site_id);
+	metrics.count("virtual_calls", virtual_calls);
+	metrics.count("dispatch_calls", receiver_classes);
+	metrics.count("average_receivers", (virtual_calls == 0) ? 0.0 :
+		      (double) receiver_classes / virtual_calls);
+	if (instantiated != null)
+	    metrics.count("instantiated_classes", instantiated.size());
+    }
+
+    // ------------------------------------
+    // the call graph. only available after analyze().
+    public CallGraph callGraph() {
+	if (call_graph == null) call_graph = graph.build();
+	return call_graph;
+    }
+
     // -------------------------
     public void createOutput() {
 	// write info about the class hierarchy
@@ -305,5 +885,28 @@ public class ChaAnalysis {
 	
 	// close open files, etc.
 	writer.done();
+
+	// save the call graph, for later queries (see CallGraph)
+	try {
+	    callGraph().save(output_dir + "/callgraph");
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write the call graph", e);
+	}
+
+	// compare RTA with CHA
+	if (rta_report != null) {
+	    try {
+		Writer out = new FileWriter(output_dir + "/rta.report");
+		out.write(rta_report);
+		out.close();
+	    } catch (IOException e) {
+		throw new RuntimeException("Cannot write rta.report", e);
+	    }
+	    System.out.print(rta_report);
+	}
+
+	// keep the summaries for the next run
+	if (cache != null) cache.save();
+	if (library != null) library.save();
     }
 }
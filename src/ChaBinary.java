@@ -0,0 +1,409 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+// a compact binary form of the files that the instrumentation reads:
+// "rmethods", "sites", "edges" and "edges.annotated". ChaWriter
+// writes it as file "cha.bin" (with -Dcha.binary=true), next to the
+// text files; Instrumenter and RuntimeTracker then map it into memory
+// and copy the fixed-width records straight into their tables,
+// instead of parsing every line of the text files.
+//
+// the layout of the file (all numbers are big-endian ints):
+//
+//   header      MAGIC, VERSION, number of strings, size of the
+//               string bytes, number of methods, sites, edges and
+//               annotated edges
+//   strings     the start of each string in the string bytes (one
+//               more entry than there are strings, for the end of the
+//               last one), then the UTF-8 bytes of all strings,
+//               padded to a multiple of 4
+//   methods     method id, name (a string index)
+//   sites       dense site id, method id y, site number x (the call
+//               site "y_x"), the numbers of receiver classes and of
+//               target methods (-1 if not known, for a site that
+//               only appears in the edges)
+//   edges       site id, target method id
+//   annotated   site id, target method id, receiver class (a string
+//               index, or -1 for static/special calls), index of the
+//               plain edge with the same site and target (-1 if the
+//               target is a library method)
+//
+// duplicate edges and annotated edges are written once, in the order
+// of their first appearance. the file can be converted to the text
+// files and back with
+//
+//   java ChaBinary text2bin <dir>
+//   java ChaBinary bin2text <dir>
+
+public class ChaBinary {
+
+    public static final String FILE_NAME = "cha.bin";
+
+    // "CHAB"
+    static final int MAGIC = 0x43484142;
+
+    // bump when the layout changes; readers reject other versions
+    static final int VERSION = 2;
+
+    private static final int HEADER_INTS = 8;
+
+    // the records of the file, as parallel arrays
+    public int[] method_id;
+    public String[] method_name;
+
+    public int[] site_id;
+    public int[] site_method;
+    public int[] site_number;
+    public int[] site_receivers;
+    public int[] site_targets;
+
+    public int[] edge_site;
+    public int[] edge_target;
+
+    public int[] annotated_site;
+    public int[] annotated_target;
+    public String[] annotated_class;
+    public int[] annotated_edge;
+
+    // ------------------------------------------------------------
+    // read a file written by Builder.write
+    public static ChaBinary read(String file_name) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(file_name, "r");
+	ByteBuffer buf;
+	try {
+	    FileChannel channel = file.getChannel();
+	    buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	} finally {
+	    // the mapping stays valid after the file is closed
+	    file.close();
+	}
+
+	IntBuffer ints = buf.asIntBuffer();
+	if (ints.remaining() < HEADER_INTS || ints.get() != MAGIC)
+	    throw new IOException(file_name + " is not a CHA binary file");
+	int version = ints.get();
+	if (version != VERSION)
+	    throw new IOException(file_name + " has version " + version +
+				  ", expected " + VERSION);
+
+	int num_strings = ints.get();
+	int string_bytes = ints.get();
+	int num_methods = ints.get();
+	int num_sites = ints.get();
+	int num_edges = ints.get();
+	int num_annotated = ints.get();
+
+	// the strings
+	int[] offsets = new int[num_strings + 1];
+	ints.get(offsets);
+	byte[] bytes = new byte[string_bytes];
+	buf.position(ints.position() * 4);
+	buf.get(bytes);
+	String[] strings = new String[num_strings];
+	for (int i = 0; i < num_strings; i++)
+	    strings[i] = new String(bytes, offsets[i], offsets[i+1] - offsets[i], "UTF-8");
+	ints.position(ints.position() + (string_bytes + 3) / 4);
+
+	ChaBinary result = new ChaBinary();
+
+	int[] methods = new int[2 * num_methods];
+	ints.get(methods);
+	result.method_id = new int[num_methods];
+	result.method_name = new String[num_methods];
+	for (int i = 0; i < num_methods; i++) {
+	    result.method_id[i] = methods[2*i];
+	    result.method_name[i] = strings[methods[2*i + 1]];
+	}
+
+	int[] sites = new int[5 * num_sites];
+	ints.get(sites);
+	result.site_id = new int[num_sites];
+	result.site_method = new int[num_sites];
+	result.site_number = new int[num_sites];
+	result.site_receivers = new int[num_sites];
+	result.site_targets = new int[num_sites];
+	for (int i = 0; i < num_sites; i++) {
+	    result.site_id[i] = sites[5*i];
+	    result.site_method[i] = sites[5*i + 1];
+	    result.site_number[i] = sites[5*i + 2];
+	    result.site_receivers[i] = sites[5*i + 3];
+	    result.site_targets[i] = sites[5*i + 4];
+	}
+
+	int[] edges = new int[2 * num_edges];
+	ints.get(edges);
+	result.edge_site = new int[num_edges];
+	result.edge_target = new int[num_edges];
+	for (int i = 0; i < num_edges; i++) {
+	    result.edge_site[i] = edges[2*i];
+	    result.edge_target[i] = edges[2*i + 1];
+	}
+
+	int[] annotated = new int[4 * num_annotated];
+	ints.get(annotated);
+	result.annotated_site = new int[num_annotated];
+	result.annotated_target = new int[num_annotated];
+	result.annotated_class = new String[num_annotated];
+	result.annotated_edge = new int[num_annotated];
+	for (int i = 0; i < num_annotated; i++) {
+	    result.annotated_site[i] = annotated[4*i];
+	    result.annotated_target[i] = annotated[4*i + 1];
+	    int cls = annotated[4*i + 2];
+	    result.annotated_class[i] = (cls == -1) ? null : strings[cls];
+	    result.annotated_edge[i] = annotated[4*i + 3];
+	}
+
+	return result;
+    }
+
+    // the "y_x" call site id of site record i
+    public String siteName(int i) {
+	return site_method[i] + "_" + site_number[i];
+    }
+
+    // whether CHA found one receiver class and one target method for
+    // site record i (see ChaWriter)
+    public boolean monomorphic(int i) {
+	return site_receivers[i] == 1 && site_targets[i] == 1;
+    }
+
+    // ------------------------------------------------------------
+    // collects the records, in the same form as the text files, and
+    // writes the file. the sites of a method have to be added before
+    // its edges; an edge whose site was never added gets the next
+    // free site id, as in RuntimeTracker.
+    public static class Builder {
+
+	private ArrayList<String> strings = new ArrayList<String>();
+	private HashMap<String, Integer> string_ids = new HashMap<String, Integer>();
+
+	private ArrayList<int[]> methods = new ArrayList<int[]>();
+	private ArrayList<int[]> sites = new ArrayList<int[]>();
+	private HashMap<String, Integer> site_ids = new HashMap<String, Integer>();
+	private int next_site = 0;
+
+	// edges are keyed by site and target
+	private ArrayList<int[]> edges = new ArrayList<int[]>();
+	private HashMap<Long, Integer> edge_ids = new HashMap<Long, Integer>();
+
+	// annotated edges are keyed by their line in "edges.annotated"
+	private ArrayList<int[]> annotated = new ArrayList<int[]>();
+	private HashSet<String> annotated_lines = new HashSet<String>();
+
+	public void addMethod(int id, String name) {
+	    methods.add(new int[] { id, string(name) });
+	}
+
+	public void addSite(int id, String call_site_id, int receivers, int targets) {
+	    int divide = call_site_id.indexOf('_');
+	    sites.add(new int[] { id,
+				  Integer.parseInt(call_site_id.substring(0, divide)),
+				  Integer.parseInt(call_site_id.substring(divide + 1)),
+				  receivers, targets });
+	    site_ids.put(call_site_id, new Integer(id));
+	    next_site = Math.max(next_site, id + 1);
+	}
+
+	public void addEdge(String call_site_id, int target_id) {
+	    int site = siteId(call_site_id);
+	    Long key = new Long(edgeKey(site, target_id));
+	    if (edge_ids.containsKey(key)) return;
+	    edge_ids.put(key, new Integer(edges.size()));
+	    edges.add(new int[] { site, target_id });
+	}
+
+	// runtime_class is null for static/special calls
+	public void addAnnotatedEdge(String call_site_id, int target_id,
+				     String runtime_class) {
+	    String line = call_site_id + "," + target_id;
+	    if (runtime_class != null) line += "," + runtime_class;
+	    if (!annotated_lines.add(line)) return;
+	    annotated.add(new int[] { siteId(call_site_id), target_id,
+				      (runtime_class == null) ? -1 : string(runtime_class) });
+	}
+
+	private int siteId(String call_site_id) {
+	    Integer id = site_ids.get(call_site_id);
+	    if (id == null) {
+		addSite(next_site, call_site_id, -1, -1);
+		return next_site - 1;
+	    }
+	    return id.intValue();
+	}
+
+	private int string(String s) {
+	    Integer id = string_ids.get(s);
+	    if (id == null) {
+		id = new Integer(strings.size());
+		string_ids.put(s, id);
+		strings.add(s);
+	    }
+	    return id.intValue();
+	}
+
+	private static long edgeKey(int site, int target) {
+	    return ((long) site << 32) | (target & 0xffffffffL);
+	}
+
+	public void write(String file_name) throws IOException {
+	    byte[][] encoded = new byte[strings.size()][];
+	    int string_bytes = 0;
+	    for (int i = 0; i < encoded.length; i++) {
+		encoded[i] = strings.get(i).getBytes("UTF-8");
+		string_bytes += encoded[i].length;
+	    }
+
+	    DataOutputStream out = new DataOutputStream
+		(new BufferedOutputStream(new FileOutputStream(file_name), 1 << 16));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(strings.size());
+		out.writeInt(string_bytes);
+		out.writeInt(methods.size());
+		out.writeInt(sites.size());
+		out.writeInt(edges.size());
+		out.writeInt(annotated.size());
+
+		int offset = 0;
+		for (int i = 0; i < encoded.length; i++) {
+		    out.writeInt(offset);
+		    offset += encoded[i].length;
+		}
+		out.writeInt(offset);
+		for (int i = 0; i < encoded.length; i++)
+		    out.write(encoded[i]);
+		for (int i = string_bytes; i % 4 != 0; i++)
+		    out.writeByte(0);
+
+		writeRecords(out, methods);
+		writeRecords(out, sites);
+		writeRecords(out, edges);
+		for (int i = 0; i < annotated.size(); i++) {
+		    int[] a = annotated.get(i);
+		    Integer edge = edge_ids.get(new Long(edgeKey(a[0], a[1])));
+		    out.writeInt(a[0]);
+		    out.writeInt(a[1]);
+		    out.writeInt(a[2]);
+		    out.writeInt((edge == null) ? -1 : edge.intValue());
+		}
+	    } finally {
+		out.close();
+	    }
+	}
+
+	private static void writeRecords(DataOutputStream out, ArrayList<int[]> records)
+	    throws IOException {
+	    for (int i = 0; i < records.size(); i++) {
+		int[] r = records.get(i);
+		for (int k = 0; k < r.length; k++)
+		    out.writeInt(r[k]);
+	    }
+	}
+    }
+
+    // ------------------------------------------------------------
+    // the converter
+    public static void main(String[] args) throws IOException {
+	if (args.length != 2 ||
+	    !(args[0].equals("text2bin") || args[0].equals("bin2text"))) {
+	    System.err.println("usage: java ChaBinary text2bin|bin2text <dir>");
+	    System.exit(1);
+	}
+	if (args[0].equals("text2bin"))
+	    textToBinary(args[1]);
+	else
+	    binaryToText(args[1]);
+    }
+
+    // read the text files in dir and write dir/cha.bin
+    static void textToBinary(String dir) throws IOException {
+	Builder b = new Builder();
+	String line;
+
+	BufferedReader in = new BufferedReader(new FileReader(dir + "/rmethods"));
+	while ((line = in.readLine()) != null) {
+	    int divide = line.indexOf(':');
+	    b.addMethod(Integer.parseInt(line.substring(0, divide)),
+			line.substring(divide + 2));
+	}
+	in.close();
+
+	// the counts are missing in files of older versions
+	in = new BufferedReader(new FileReader(dir + "/sites"));
+	while ((line = in.readLine()) != null) {
+	    int divide = line.indexOf(':');
+	    String[] fields = line.substring(divide + 2).split(",");
+	    b.addSite(Integer.parseInt(line.substring(0, divide)), fields[0],
+		      (fields.length == 3) ? Integer.parseInt(fields[1]) : -1,
+		      (fields.length == 3) ? Integer.parseInt(fields[2]) : -1);
+	}
+	in.close();
+
+	in = new BufferedReader(new FileReader(dir + "/edges"));
+	while ((line = in.readLine()) != null) {
+	    int divide = line.indexOf(',');
+	    b.addEdge(line.substring(0, divide),
+		      Integer.parseInt(line.substring(divide + 1)));
+	}
+	in.close();
+
+	in = new BufferedReader(new FileReader(dir + "/edges.annotated"));
+	while ((line = in.readLine()) != null) {
+	    int divide1 = line.indexOf(',');
+	    int divide2 = line.lastIndexOf(',');
+	    if (divide1 == divide2)
+		b.addAnnotatedEdge(line.substring(0, divide1),
+				   Integer.parseInt(line.substring(divide1 + 1)), null);
+	    else
+		b.addAnnotatedEdge(line.substring(0, divide1),
+				   Integer.parseInt(line.substring(divide1 + 1, divide2)),
+				   line.substring(divide2 + 1));
+	}
+	in.close();
+
+	b.write(dir + "/" + FILE_NAME);
+    }
+
+    // read dir/cha.bin and write the text files in dir. duplicate
+    // edges in the original text files appear only once.
+    static void binaryToText(String dir) throws IOException {
+	ChaBinary bin = read(dir + "/" + FILE_NAME);
+
+	// the site names, by site id
+	HashMap<Integer, String> names = new HashMap<Integer, String>();
+
+	BufferedWriter out = new BufferedWriter(new FileWriter(dir + "/rmethods"));
+	for (int i = 0; i < bin.method_id.length; i++)
+	    out.write(bin.method_id[i] + ": " + bin.method_name[i] + "\n");
+	out.close();
+
+	out = new BufferedWriter(new FileWriter(dir + "/sites"));
+	for (int i = 0; i < bin.site_id.length; i++) {
+	    names.put(new Integer(bin.site_id[i]), bin.siteName(i));
+	    out.write(bin.site_id[i] + ": " + bin.siteName(i));
+	    if (bin.site_receivers[i] != -1)
+		out.write("," + bin.site_receivers[i] + "," + bin.site_targets[i]);
+	    out.write("\n");
+	}
+	out.close();
+
+	out = new BufferedWriter(new FileWriter(dir + "/edges"));
+	for (int i = 0; i < bin.edge_site.length; i++)
+	    out.write(names.get(new Integer(bin.edge_site[i])) + "," +
+		      bin.edge_target[i] + "\n");
+	out.close();
+
+	out = new BufferedWriter(new FileWriter(dir + "/edges.annotated"));
+	for (int i = 0; i < bin.annotated_site.length; i++) {
+	    out.write(names.get(new Integer(bin.annotated_site[i])) + "," +
+		      bin.annotated_target[i]);
+	    if (bin.annotated_class[i] != null)
+		out.write("," + bin.annotated_class[i]);
+	    out.write("\n");
+	}
+	out.close();
+    }
+}
@@ -0,0 +1,400 @@
+import soot.*;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+// a persistent cache of method summaries, for incremental runs of
+// ChaMain (-Dcha.cache=<file>). each class in the cache is stored
+// with a key (see key()), and the summaries of its methods are reused
+// as long as the key is the same. with lazy loading
+// (-Dloader.lazy=true), the bodies of those methods are then never
+// built. without lazy loading, Loader builds all bodies anyway and
+// the cache only saves summarizing them, which is cheap, so the cache
+// is only worth it with -Dloader.lazy=true (ChaAnalysis warns).
+//
+// a summary depends on more than the class file of its declaring
+// class: Soot resolves each call to a target method by looking up the
+// referenced class and its superclasses, and infers the receiver
+// types from the types of the fields, methods and classes that the
+// body uses and from their place in the hierarchy. all of these
+// classes are named in the constant pool of the class file (as
+// classes, or in field and method descriptors). the key is therefore
+// the hash of the class file together with the hashes of the class
+// files of every class in its constant pool and of all their
+// supertypes (and the supertypes of the class itself). a change to
+// any of them, e.g. a method added to a superclass of a callee,
+// invalidates the summaries of the class.
+//
+// only the summaries are cached. the class hierarchy and all dispatch
+// results are recomputed in every run (both are cheap), so a changed
+// class changes the targets of every call that can reach it, and the
+// output files are always the same as those of a full run.
+
+class ChaCache {
+
+    // bump when the format or the contents of a summary change
+    private static final int VERSION = 4;
+
+    // the file the cache is read from and written to
+    private String file_name;
+
+    // the entries read from the file: for each class name, the
+    // key and the serialized summaries of its methods
+    // (method signature -> byte[])
+    private HashMap old_keys = new HashMap();
+    private HashMap old_summaries = new HashMap();
+
+    // the summaries of this run, for each class name
+    // (method signature -> MethodSummary)
+    private HashMap new_summaries = new HashMap();
+
+    // the class file hash and the key of each class name seen in
+    // this run
+    private HashMap hashes = new HashMap();
+    private HashMap keys = new HashMap();
+
+    // the entries of the Soot classpath: directories, or open jar
+    // and zip files (closed by save())
+    private ArrayList classpath = new ArrayList();
+
+    private int reused = 0;
+    private int computed = 0;
+
+    // ----------------------------------------------------------
+    public ChaCache(String file_name, String soot_classpath) {
+	this.file_name = file_name;
+
+	StringTokenizer st = new StringTokenizer(soot_classpath, File.pathSeparator);
+	while (st.hasMoreTokens()) {
+	    File f = new File(st.nextToken());
+	    try {
+		if (f.isDirectory()) classpath.add(f);
+		else if (f.isFile()) classpath.add(new ZipFile(f));
+	    } catch (IOException e) {
+		// not a zip file; Soot can't use it either
+	    }
+	}
+
+	if (new File(file_name).exists()) load();
+    }
+
+    // read the cache file. a cache that can't be read is ignored
+    // (everything is then computed again), since it only makes the
+    // analysis faster.
+    private void load() {
+	try {
+	    DataInputStream in = new DataInputStream
+		(new BufferedInputStream(new FileInputStream(file_name)));
+	    try {
+		if (in.readInt() != VERSION) return;
+		int num_classes = in.readInt();
+		for (int c = 0; c < num_classes; c++) {
+		    String name = in.readUTF();
+		    old_keys.put(name, in.readUTF());
+		    HashMap methods = new HashMap();
+		    int num_methods = in.readInt();
+		    for (int k = 0; k < num_methods; k++) {
+			String sig = in.readUTF();
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			methods.put(sig, bytes);
+		    }
+		    old_summaries.put(name, methods);
+		}
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    System.out.println("Ignoring analysis cache " + file_name + ": " + e);
+	    old_keys.clear();
+	    old_summaries.clear();
+	}
+    }
+
+    // ----------------------------------------------------------
+    // the cached summary of method m, or null if its class changed
+    // or the cache has no summary for it
+    public synchronized MethodSummary lookup(SootMethod m) {
+	String name = m.getDeclaringClass().getName();
+	String key = key(name);
+	if (key == null || !key.equals(old_keys.get(name))) return null;
+
+	byte[] bytes = (byte[]) ((HashMap) old_summaries.get(name)).get(m.getSignature());
+	if (bytes == null) return null;
+
+	try {
+	    MethodSummary summary = MethodSummary.read
+		(new DataInputStream(new ByteArrayInputStream(bytes)));
+	    if (summary != null) reused++;
+	    return summary;
+	} catch (IOException e) {
+	    return null;
+	}
+    }
+
+    // record the summary that the analysis used for method m; it is
+    // written to the cache file by save()
+    public synchronized void put(SootMethod m, MethodSummary summary, boolean was_cached) {
+	String name = m.getDeclaringClass().getName();
+	HashMap methods = (HashMap) new_summaries.get(name);
+	if (methods == null) {
+	    methods = new HashMap();
+	    new_summaries.put(name, methods);
+	}
+	methods.put(m.getSignature(), summary);
+	if (!was_cached) computed++;
+    }
+
+    // ----------------------------------------------------------
+    // write the cache file: the summaries of this run, plus those old
+    // entries of unchanged classes that this run didn't need (they
+    // may be needed again later). this is the end of the cache: the
+    // jar and zip files of the classpath are closed.
+    public synchronized void save() {
+	try {
+	    write();
+	} finally {
+	    for (Iterator it = classpath.iterator(); it.hasNext();) {
+		Object entry = it.next();
+		if (!(entry instanceof ZipFile)) continue;
+		try {
+		    ((ZipFile) entry).close();
+		} catch (IOException e) {
+		    // nothing more to read from it anyway
+		}
+	    }
+	    classpath.clear();
+	}
+	System.out.println("Analysis cache: reused " + reused +
+			   " method summaries, computed " + computed);
+    }
+
+    private void write() {
+	// classes without a class file can't be checked, so they are
+	// not stored
+	TreeSet names = new TreeSet();
+	for (Iterator it = new_summaries.keySet().iterator(); it.hasNext();) {
+	    String name = (String) it.next();
+	    if (key(name) != null) names.add(name);
+	}
+	for (Iterator it = old_keys.keySet().iterator(); it.hasNext();) {
+	    String name = (String) it.next();
+	    String key = key(name);
+	    if (key != null && key.equals(old_keys.get(name)))
+		names.add(name);
+	}
+
+	try {
+	    DataOutputStream out = new DataOutputStream
+		(new BufferedOutputStream(new FileOutputStream(file_name)));
+	    out.writeInt(VERSION);
+	    out.writeInt(names.size());
+	    for (Iterator it = names.iterator(); it.hasNext();)
+		writeClass(out, (String) it.next());
+	    out.close();
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write analysis cache " + file_name, e);
+	}
+    }
+
+    private void writeClass(DataOutputStream out, String name) throws IOException {
+	// the summaries of this run replace the old ones; the old ones
+	// are still valid here, since the key didn't change
+	TreeMap methods = new TreeMap();
+	HashMap old = (HashMap) old_summaries.get(name);
+	if (old != null && key(name).equals(old_keys.get(name)))
+	    methods.putAll(old);
+	HashMap current = (HashMap) new_summaries.get(name);
+	if (current != null) {
+	    for (Iterator it = current.keySet().iterator(); it.hasNext();) {
+		String sig = (String) it.next();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		((MethodSummary) current.get(sig)).write(new DataOutputStream(bytes));
+		methods.put(sig, bytes.toByteArray());
+	    }
+	}
+
+	out.writeUTF(name);
+	out.writeUTF(key(name));
+	out.writeInt(methods.size());
+	for (Iterator it = methods.keySet().iterator(); it.hasNext();) {
+	    String sig = (String) it.next();
+	    byte[] bytes = (byte[]) methods.get(sig);
+	    out.writeUTF(sig);
+	    out.writeInt(bytes.length);
+	    out.write(bytes);
+	}
+    }
+
+    // ----------------------------------------------------------
+    // the key of the named class: the hash of its class file, and a
+    // CRC-32 over the names and hashes of the classes it depends on
+    // (see the comment at the top). null if there is no class file.
+    private String key(String class_name) {
+	if (keys.containsKey(class_name)) return (String) keys.get(class_name);
+
+	String hash = hash(class_name);
+	String key = null;
+	if (hash != null) {
+	    TreeSet depends = new TreeSet();
+	    addWithSupertypes(depends, class_name);
+	    for (Iterator it = referencedClasses(class_name).iterator(); it.hasNext();)
+		addWithSupertypes(depends, (String) it.next());
+	    CRC32 crc = new CRC32();
+	    for (Iterator it = depends.iterator(); it.hasNext();) {
+		String name = (String) it.next();
+		String h = hash(name);
+		try {
+		    crc.update((name + "=" + (h == null ? "-" : h) + ";").getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+		    throw new RuntimeException(e);
+		}
+	    }
+	    key = hash + "/" + Long.toHexString(crc.getValue()) + "/" + depends.size();
+	}
+	keys.put(class_name, key);
+	return key;
+    }
+
+    // add the named class and all its superclasses and interfaces, as
+    // far as the Scene knows them
+    private static void addWithSupertypes(Set names, String name) {
+	if (!names.add(name) || !Scene.v().containsClass(name)) return;
+	SootClass c = Scene.v().getSootClass(name);
+	if (c.hasSuperclass()) addWithSupertypes(names, c.getSuperclass().getName());
+	for (Iterator it = c.getInterfaces().iterator(); it.hasNext();)
+	    addWithSupertypes(names, ((SootClass) it.next()).getName());
+    }
+
+    // the names of the classes in the constant pool of the class file
+    // of the named class: the class entries, and the classes in the
+    // descriptors of fields, methods and method types
+    private Set referencedClasses(String class_name) {
+	TreeSet result = new TreeSet();
+	byte[] bytes = classFile(class_name);
+	if (bytes == null) return result;
+	try {
+	    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+	    in.readInt();			// magic
+	    in.readUnsignedShort();		// minor version
+	    in.readUnsignedShort();		// major version
+	    int count = in.readUnsignedShort();
+	    String[] utf8 = new String[count];
+	    ArrayList names = new ArrayList();		// Integer: class name entries
+	    ArrayList descriptors = new ArrayList();	// Integer: descriptor entries
+	    for (int i = 1; i < count; i++) {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case 1:  utf8[i] = in.readUTF(); break;
+		case 7:  names.add(new Integer(in.readUnsignedShort())); break;
+		case 16: descriptors.add(new Integer(in.readUnsignedShort())); break;
+		case 12:
+		    in.readUnsignedShort();
+		    descriptors.add(new Integer(in.readUnsignedShort()));
+		    break;
+		case 8: case 19: case 20: in.skipBytes(2); break;
+		case 15: in.skipBytes(3); break;
+		case 3: case 4: case 9: case 10: case 11: case 17: case 18:
+		    in.skipBytes(4);
+		    break;
+		case 5: case 6:
+		    // longs and doubles take two entries
+		    in.skipBytes(8);
+		    i++;
+		    break;
+		default:
+		    throw new IOException("unknown constant pool tag " + tag);
+		}
+	    }
+	    for (Iterator it = names.iterator(); it.hasNext();) {
+		String name = utf8[((Integer) it.next()).intValue()];
+		if (name.startsWith("[")) addDescriptorClasses(result, name);
+		else result.add(name.replace('/', '.'));
+	    }
+	    for (Iterator it = descriptors.iterator(); it.hasNext();)
+		addDescriptorClasses(result, utf8[((Integer) it.next()).intValue()]);
+	} catch (IOException e) {
+	    // not a class file that we can read; Soot would fail on it
+	}
+	return result;
+    }
+
+    // the classes "Lname;" in a field or method descriptor
+    private static void addDescriptorClasses(Set result, String descriptor) {
+	int start = descriptor.indexOf('L');
+	while (start != -1) {
+	    int end = descriptor.indexOf(';', start);
+	    if (end == -1) return;
+	    result.add(descriptor.substring(start + 1, end).replace('/', '.'));
+	    start = descriptor.indexOf('L', end);
+	}
+    }
+
+    // the contents of the class file of the named class, from the
+    // first classpath entry that contains it, or null
+    private byte[] classFile(String class_name) {
+	String path = class_name.replace('.', '/') + ".class";
+	for (Iterator it = classpath.iterator(); it.hasNext();) {
+	    Object entry = it.next();
+	    try {
+		InputStream in = null;
+		if (entry instanceof ZipFile) {
+		    ZipEntry ze = ((ZipFile) entry).getEntry(path);
+		    if (ze != null) in = ((ZipFile) entry).getInputStream(ze);
+		} else {
+		    File f = new File((File) entry, path);
+		    if (f.isFile()) in = new FileInputStream(f);
+		}
+		if (in == null) continue;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0) bytes.write(buf, 0, n);
+		in.close();
+		return bytes.toByteArray();
+	    } catch (IOException e) {
+		return null;
+	    }
+	}
+	return null;
+    }
+
+    // ----------------------------------------------------------
+    // the hash of the class file of the named class, from the first
+    // classpath entry that contains it, or null if there is no class
+    // file. for jar and zip files this is the CRC-32 and size stored
+    // in the archive, so nothing has to be decompressed.
+    private String hash(String class_name) {
+	if (hashes.containsKey(class_name)) return (String) hashes.get(class_name);
+
+	String path = class_name.replace('.', '/') + ".class";
+	String hash = null;
+	for (Iterator it = classpath.iterator(); hash == null && it.hasNext();) {
+	    Object entry = it.next();
+	    if (entry instanceof ZipFile) {
+		ZipEntry ze = ((ZipFile) entry).getEntry(path);
+		if (ze != null)
+		    hash = Long.toHexString(ze.getCrc()) + "/" + ze.getSize();
+	    } else {
+		File f = new File((File) entry, path);
+		if (f.isFile()) hash = hashFile(f);
+	    }
+	}
+	hashes.put(class_name, hash);
+	return hash;
+    }
+
+    private static String hashFile(File f) {
+	try {
+	    CRC32 crc = new CRC32();
+	    InputStream in = new FileInputStream(f);
+	    byte[] buf = new byte[8192];
+	    int n;
+	    while ((n = in.read(buf)) > 0) crc.update(buf, 0, n);
+	    in.close();
+	    return Long.toHexString(crc.getValue()) + "/" + f.length();
+	} catch (IOException e) {
+	    return null;
+	}
+    }
+}
@@ -6,8 +6,14 @@ public class ChaMain {
     // an object responsible for performing CHA
     public static final ChaAnalysis analysis = new ChaAnalysis();
 
+    // per-phase timing and counters, written to "metrics.json"
+    // in the output directory
+    public static final Metrics metrics = new Metrics();
+
     public static void main(String[] args) throws Exception {
 	
+	metrics.startPhase("load");
+
 	// Load all JIMPLE into memory. The command line provides some
 	// necessary parameters for this. You don't need to understand
 	// how this works
@@ -20,9 +26,19 @@ public class ChaMain {
 	analysis.setOutputDir(args[2]);
 
 	// run CHA
+	metrics.startPhase("analyze");
 	analysis.analyze();
 
+	// how many method bodies had to be built
+	Loader.reportBodies();
+
 	// produce output files
+	metrics.startPhase("output");
 	analysis.createOutput();
+	metrics.endPhase();
+
+	analysis.reportMetrics(metrics);
+	Loader.reportMetrics(metrics);
+	metrics.report(args[2] + "/metrics.json");
     }
 }
@@ -8,15 +8,43 @@ public class ChaWriter {
     // directory containing the output files
     private String output_dir;
 
+    // all output files are written through this object, by a
+    // background thread (see AsyncWriter), so the analysis does not
+    // wait for the disk. an I/O error makes the next write (or done)
+    // throw a RuntimeException.
+    private AsyncWriter files = new AsyncWriter(1 << 18, 8);
+
     // file storing info about call sites inside non-library methods
-    private BufferedWriter call_file;
+    private AsyncWriter.Output call_file;
 
     // file representing the call edges
-    private BufferedWriter call_edges;
+    private AsyncWriter.Output call_edges;
 
     // file representing the call edges in the CUT, with info about
     // the receiver classes that trigger them
-    private BufferedWriter call_edges_cut;
+    private AsyncWriter.Output call_edges_cut;
+
+    // file mapping the dense integer site ids (used by the
+    // instrumentation probes) to the "y_x" call site ids. each line
+    // is "id: y_x,R,T", with the number R of receiver classes and the
+    // number T of target methods that CHA found for the site (R is 0
+    // for static/special calls, and both are 0 for calls on arrays).
+    // Instrumenter leaves the receiver out of the probes of the sites
+    // with R = T = 1.
+    private AsyncWriter.Output call_sites;
+
+    // the site of the last writeSite, until its counts are known
+    // (when writeSimpleCall or writeComplexCall is called for it, or
+    // else at the next site): its dense id (-1 if there is none) and
+    // its "y_x" id
+    private int pending_site = -1;
+    private String pending_call_site_id;
+
+    // with -Dcha.binary=true, the contents of files rmethods, sites,
+    // edges and edges.annotated are also collected here and written
+    // to file "cha.bin" at the end (see ChaBinary). null otherwise.
+    private ChaBinary.Builder binary =
+	Boolean.getBoolean("cha.binary") ? new ChaBinary.Builder() : null;
 
     // auxiliary variable used to filter out call sites inside library
     // methods
@@ -35,43 +63,33 @@ public class ChaWriter {
 	hierarchy = h;
 
 	// open files to store info about all calls in non-library methods
-	try {
-	    call_file =
-		new BufferedWriter(new FileWriter(output_dir + "/calls"));
-	    call_edges =
-		new BufferedWriter(new FileWriter(output_dir + "/edges"));
-	    call_edges_cut =
-		new BufferedWriter(new FileWriter(output_dir + "/edges.annotated"));
-
-	} catch (Exception e) {
-	    System.out.println("OOPS! " + e);
-	}
+	call_file = files.open(output_dir + "/calls");
+	call_edges = files.open(output_dir + "/edges");
+	call_edges_cut = files.open(output_dir + "/edges.annotated");
+	call_sites = files.open(output_dir + "/sites");
     }
     
     
-    public void writeMethodInfo(Hashtable reachable) {
+    public void writeMethodInfo(Map reachable) {
 	
 	// open files to store the info
-	try {
-	    BufferedWriter file =
-		new BufferedWriter(new FileWriter(output_dir + "/rmethods_all"));
-	    BufferedWriter file_nl =
-		new BufferedWriter(new FileWriter(output_dir + "/rmethods"));
-
-	    file.write("Total num reachable methods: " + reachable.size() + "\n");
-	    for (Iterator it = reachable.keySet().iterator(); it.hasNext();) {
-		SootMethod m = (SootMethod) it.next();
-		Integer id = (Integer) reachable.get(m);
-		file.write(id + ": " + m + "\n");
-		if (hierarchy.notLibrary(m)) 
-		    file_nl.write(id + ": " + m + "\n");
+	AsyncWriter.Output file = files.open(output_dir + "/rmethods_all");
+	AsyncWriter.Output file_nl = files.open(output_dir + "/rmethods");
+
+	file.append("Total num reachable methods: ").append(reachable.size())
+	    .append('\n');
+	for (Iterator it = reachable.keySet().iterator(); it.hasNext();) {
+	    SootMethod m = (SootMethod) it.next();
+	    Integer id = (Integer) reachable.get(m);
+	    String name = m.toString();
+	    file.append(id).append(": ").append(name).append('\n');
+	    if (hierarchy.notLibrary(m)) {
+		file_nl.append(id).append(": ").append(name).append('\n');
+		if (binary != null) binary.addMethod(id.intValue(), name);
 	    }
-	    file.close();
-	    file_nl.close();
-
-	} catch (Exception e) {
-	    System.out.println("OOPS! " + e);
 	}
+	file.close();
+	file_nl.close();
     }
     // -------------------------------------------
     public String percent(long x, long y) {
@@ -83,64 +101,77 @@ public class ChaWriter {
     public void writeHierarchyInfo() {
 
 	// open a file to store the info
-	try {
-	    BufferedWriter file =
-		new BufferedWriter(new FileWriter(output_dir + "/hier_all"));
-	    BufferedWriter file_nl =
-		new BufferedWriter(new FileWriter(output_dir + "/hier"));
+	AsyncWriter.Output file = files.open(output_dir + "/hier_all");
+	AsyncWriter.Output file_nl = files.open(output_dir + "/hier");
 	
-	    Set C = hierarchy.allClasses();
-	    file.write("Total num classes: " + C.size() + "\n");
-	    for (Iterator it = C.iterator(); it.hasNext();) {
-		SootClass c = (SootClass) it.next();
-		file.write(c + "," + 
-			   hierarchy.possibleReceiverClasses(c).size() + "\n");
-		if (hierarchy.notLibrary(c)) 
-		    file_nl.write(c + "," + 
-				  hierarchy.possibleReceiverClasses(c).size() + 
-				  "\n");
-	    }
-	    file.close();
-	    file_nl.close();
-	} catch (Exception e) {
-	    System.out.println("OOPS! " + e);
+	Set C = hierarchy.allClasses();
+	file.append("Total num classes: ").append(C.size()).append('\n');
+	for (Iterator it = C.iterator(); it.hasNext();) {
+	    SootClass c = (SootClass) it.next();
+	    int size = hierarchy.possibleReceiverClasses(c).size();
+	    file.append(c).append(',').append(size).append('\n');
+	    if (hierarchy.notLibrary(c)) 
+		file_nl.append(c).append(',').append(size).append('\n');
 	}
+	file.close();
+	file_nl.close();
     }
 
     public void startNewMethod(SootMethod m, int method_id) {
+	flushSite(0, 0);
 	inside_nonlib_method = hierarchy.notLibrary(m);
 	if (inside_nonlib_method) 
-	    try {
-		call_file.write("\n===== Method " + method_id + ": "
-				+ m + "\n");
-	    } catch (Exception e) {
-		System.out.println("OOPS! " + e);
-	    }
+	    call_file.append("\n===== Method ").append(method_id)
+		.append(": ").append(m).append('\n');
+    }
+
+    public void writeSite(int site_id, String call_site_id) {
+	flushSite(0, 0);
+	if (inside_nonlib_method) {
+	    pending_site = site_id;
+	    pending_call_site_id = call_site_id;
+	}
+    }
+
+    // write the pending site, with its counts of receiver classes and
+    // target methods. it has to be written before its edges (see
+    // ChaBinary.Builder).
+    private void flushSite(int num_rcv_classes, int num_target_methods) {
+	if (pending_site == -1) return;
+	call_sites.append(pending_site).append(": ").append(pending_call_site_id)
+	    .append(',').append(num_rcv_classes)
+	    .append(',').append(num_target_methods).append('\n');
+	if (binary != null)
+	    binary.addSite(pending_site, pending_call_site_id,
+			   num_rcv_classes, num_target_methods);
+	pending_site = -1;
     }
 
-    public void writeSimpleCall(InvokeExpr call, String call_site_id,
+    public void writeSimpleCall(String call, String call_site_id,
 				int target_method_id, 
 				SootMethod source_method) {
-	if (inside_nonlib_method) 
-	    try {
-		call_file.write(call_site_id + ": [S] " + call + "\n");
-
-		// also need to write call edges. we only care about
-		// targets that are non-library methods.  all library
-		// methods are assigned id = 0.
-		if (target_method_id != 0) {
-		    call_edges.write(call_site_id + "," + 
-				     target_method_id + "\n");
+	flushSite(0, 1);
+	if (inside_nonlib_method) {
+	    call_file.append(call_site_id).append(": [S] ").append(call)
+		.append('\n');
+
+	    // also need to write call edges. we only care about
+	    // targets that are non-library methods.  all library
+	    // methods are assigned id = 0.
+	    if (target_method_id != 0) {
+		call_edges.append(call_site_id).append(',')
+		    .append(target_method_id).append('\n');
 		// also write this "simple" edge in edges.cut if its
 		// source and target are in the CUT
 		// if (inCUT(source_method) && inCUT(call.getMethod()) )
-		    call_edges_cut.write(call_site_id + "," + 
-				     target_method_id + "\n");
+		call_edges_cut.append(call_site_id).append(',')
+		    .append(target_method_id).append('\n');
+		if (binary != null) {
+		    binary.addEdge(call_site_id, target_method_id);
+		    binary.addAnnotatedEdge(call_site_id, target_method_id, null);
 		}
-
-	    } catch (Exception e) {
-		System.out.println("OOPS! " + e);
 	    }
+	}
     }
 
     public void writeAnnotatedEdge(String call_site_id,
@@ -149,57 +180,65 @@ public class ChaWriter {
 				   int target_id,
 				   SootClass runtime_class) {
 	//if (inCUT(source_method) && inCUT(target_method))
-	if (inside_nonlib_method) 
-		try {
-		    call_edges_cut.write(call_site_id + "," + 
-					target_id + "," + 
-				     runtime_class + "\n");
-		} catch (Exception e) {
-		    System.out.println("OOPS! " + e);
-		}
+	if (inside_nonlib_method) {
+	    String class_name = runtime_class.toString();
+	    call_edges_cut.append(call_site_id).append(',').append(target_id)
+		.append(',').append(class_name).append('\n');
+	    if (binary != null)
+		binary.addAnnotatedEdge(call_site_id, target_id, class_name);
+	}
     }
 
     private boolean inCUT(SootClass c ) { return cutClasses.contains(c); }
     private boolean inCUT(SootMethod m) 
     { return inCUT(m.getDeclaringClass()); }
 
-    public void writeComplexCall(InvokeExpr call,
+    public void writeComplexCall(String call,
 				 String call_site_id,
 				 int num_rcv_classes, 
 				 int num_target_methods) {
+	flushSite(num_rcv_classes, num_target_methods);
 	if (inside_nonlib_method) 
-	    try {
-		call_file.write(call_site_id + ": [C] " + call + "," + 
-				num_rcv_classes + "," + 
-				num_target_methods + "\n");
-	    } catch (Exception e) {
-		System.out.println("OOPS! " + e);
-	    }
+	    call_file.append(call_site_id).append(": [C] ").append(call)
+		.append(',').append(num_rcv_classes)
+		.append(',').append(num_target_methods).append('\n');
     }
 
     public void writeTarget(String call_site_id,
 			    SootMethod m, int target_method_id) {
-	if (inside_nonlib_method) 
-	    try {
-		call_file.write("     " + m + "\n");
-		// also write the call edges, but only if the target
-		// is a non-library method
-		if (target_method_id != 0)
-		    call_edges.write(call_site_id + "," + 
-				     target_method_id + "\n");
-	    } catch (Exception e) {
-		System.out.println("OOPS! " + e);
+	if (inside_nonlib_method) {
+	    call_file.append("     ").append(m).append('\n');
+	    // also write the call edges, but only if the target
+	    // is a non-library method
+	    if (target_method_id != 0) {
+		call_edges.append(call_site_id).append(',')
+		    .append(target_method_id).append('\n');
+		if (binary != null) binary.addEdge(call_site_id, target_method_id);
 	    }
+	}
     }
 
+    // close all files and wait until they are written. throws a
+    // RuntimeException if any of them could not be written.
     public void done() {
+	flushSite(0, 0);
+	call_file.close();
+	call_edges.close();
+	call_edges_cut.close();
+	call_sites.close();
+	files.close();
+
+	// write the binary file, or remove the one of an earlier
+	// run so that nobody reads it instead of the new text files
+	File binary_file = new File(output_dir + "/" + ChaBinary.FILE_NAME);
+	if (binary == null) {
+	    binary_file.delete();
+	    return;
+	}
 	try {
-	    call_file.close();
-	    call_edges.close();
-	    call_edges_cut.close();
-
-	} catch (Exception e) {
-	    System.out.println("OOPS! " + e);
+	    binary.write(binary_file.getPath());
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write " + binary_file, e);
 	}
     }
 
@@ -4,47 +4,273 @@ import java.util.*;
 
 public class Hierarchy {
 
-    // this hash table contains a pair (C,X) for each class C in
-    // allClasses. X is a Hashset of all non-abstract classes that are
-    // direct or indirect subclases of C (including C itself)
-    private Hashtable tbl = new Hashtable();
-    
-    // all classes in the hierarchy
-    public Set allClasses() { return tbl.keySet(); }
+    // every class in the hierarchy has a dense integer id. the ids
+    // are assigned in preorder over the superclass tree, so the
+    // direct and indirect subclasses of class C are exactly the
+    // classes with ids in [id(C), subtree_end[id(C)]).
+    private HashMap ids = new HashMap();
+    private SootClass[] classes = new SootClass[0];
+    private int[] subtree_end = new int[0];
+
+    // the non-abstract classes, and for each id i the number of
+    // non-abstract classes with ids below i. together they give the
+    // number of non-abstract subclasses of C without any iteration.
+    private BitSet concrete = new BitSet();
+    private int[] concrete_before = new int[1];
+
+    // for each interface I, the set of ids of all non-abstract
+    // classes that implement I, directly or indirectly. null for
+    // classes, whose receivers are given by their id range.
+    private BitSet[] implementors = new BitSet[0];
+    private int[] implementors_size = new int[0];
+
+    // every method subsignature declared in the hierarchy gets a
+    // dense integer id. for each class (not interface), the dispatch
+    // table holds, sorted by subsignature id, the method that
+    // virtualDispatch would find for each subsignature: the one
+    // declared in the class itself or in its closest superclass.
+    // a class that declares no methods shares the table of its
+    // superclass.
+    private HashMap subsig_ids = new HashMap();
+    private int[][] dispatch_keys = new int[0][];
+    private SootMethod[][] dispatch_methods = new SootMethod[0][];
+
+    // all classes in the hierarchy, in id order
+    public Set allClasses() {
+	return Collections.unmodifiableSet(ids.keySet());
+    }
 
     public void initialize(Chain allClasses) {
 	// constructs the necessary data structures for method
-	// potentialReceiverClasses. More precisely, constructs all
-	// pairs (C,X) in tbl
-	
-	// first, create an empty set for each class in allClasses
-	for (Iterator it = allClasses.iterator(); it.hasNext();) 
-	    tbl.put(it.next(),new HashSet());
-
-	// next, for each non-abstract class C, recursively traverse
-	// all superclasses of C and add C to their sets
-	for (Iterator it = allClasses.iterator(); it.hasNext();) {
-	    SootClass c = (SootClass) it.next();
-	    if (notAbstract(c)) traverse(c,c);
+	// possibleReceiverClasses: the class ids, the id ranges of
+	// the subclasses, and the implementor sets of interfaces
+
+	// first, give each class a temporary index and find its
+	// direct subclasses. the superclass of an interface is
+	// java.lang.Object, so interfaces are leaves of this tree.
+	int n = allClasses.size();
+	SootClass[] input = new SootClass[n];
+	HashMap index = new HashMap();
+	int k = 0;
+	for (Iterator it = allClasses.iterator(); it.hasNext(); k++) {
+	    input[k] = (SootClass) it.next();
+	    index.put(input[k], new Integer(k));
+	}
+
+	int[] child_count = new int[n];
+	int[] parent = new int[n];
+	for (int i = 0; i < n; i++) {
+	    parent[i] = -1;
+	    if (input[i].hasSuperclass()) {
+		Integer p = (Integer) index.get(input[i].getSuperclass());
+		if (p != null) {
+		    parent[i] = p.intValue();
+		    child_count[parent[i]]++;
+		}
+	    }
+	}
+	int[][] children = new int[n][];
+	for (int i = 0; i < n; i++) children[i] = new int[child_count[i]];
+	Arrays.fill(child_count, 0);
+	for (int i = 0; i < n; i++)
+	    if (parent[i] != -1)
+		children[parent[i]][child_count[parent[i]]++] = i;
+
+	// next, assign the final ids in preorder, with an explicit
+	// stack instead of recursion (the superclass chains of large
+	// programs are deep enough to make recursion a problem)
+	ids = new LinkedHashMap();
+	classes = new SootClass[n];
+	subtree_end = new int[n];
+	int[] id_of = new int[n];
+	int[] stack = new int[n];
+	int[] next_child = new int[n];
+	int next_id = 0;
+	for (int root = 0; root < n; root++) {
+	    if (parent[root] != -1) continue;
+	    int top = 0;
+	    stack[0] = root;
+	    id_of[root] = next_id++;
+	    while (top >= 0) {
+		int c = stack[top];
+		if (next_child[c] < children[c].length) {
+		    int d = children[c][next_child[c]++];
+		    id_of[d] = next_id++;
+		    stack[++top] = d;
+		} else {
+		    subtree_end[id_of[c]] = next_id;
+		    top--;
+		}
+	    }
+	}
+	for (int i = 0; i < n; i++) classes[id_of[i]] = input[i];
+	for (int i = 0; i < n; i++) ids.put(classes[i], new Integer(i));
+
+	concrete = new BitSet(n);
+	concrete_before = new int[n + 1];
+	for (int i = 0; i < n; i++) {
+	    if (notAbstract(classes[i])) concrete.set(i);
+	    concrete_before[i + 1] = concrete_before[i] +
+		(concrete.get(i) ? 1 : 0);
+	}
+
+	// finally, the implementor sets of interfaces. a class that
+	// directly implements I contributes its whole subclass range;
+	// an interface J that extends I contributes the set of J. the
+	// interfaces are processed in topological order (each one
+	// after all interfaces that extend it), so every set is
+	// complete before it is merged into its superinterfaces.
+	implementors = new BitSet[n];
+	implementors_size = new int[n];
+	int[] pending = new int[n];
+	for (int i = 0; i < n; i++)
+	    if (classes[i].isInterface()) implementors[i] = new BitSet();
+
+	for (int i = 0; i < n; i++) {
+	    for (Iterator it = classes[i].getInterfaces().iterator(); it.hasNext();) {
+		int j = id((SootClass) it.next());
+		if (j == -1) continue;
+		if (classes[i].isInterface()) pending[j]++;
+		else implementors[j].set(i, subtree_end[i]);
+	    }
+	}
+
+	int[] ready = new int[n];
+	int head = 0, tail = 0;
+	for (int i = 0; i < n; i++)
+	    if (implementors[i] != null && pending[i] == 0) ready[tail++] = i;
+	while (head < tail) {
+	    int i = ready[head++];
+	    implementors[i].and(concrete);
+	    implementors_size[i] = implementors[i].cardinality();
+	    for (Iterator it = classes[i].getInterfaces().iterator(); it.hasNext();) {
+		int j = id((SootClass) it.next());
+		if (j == -1) continue;
+		implementors[j].or(implementors[i]);
+		if (--pending[j] == 0) ready[tail++] = j;
+	    }
+	}
+
+	buildDispatchTables();
+    }
+
+    // builds the dispatch tables of all classes. since ids are in
+    // preorder, a superclass is always done before its subclasses,
+    // and each table is the table of the superclass merged with the
+    // methods the class declares itself.
+    private void buildDispatchTables() {
+	int n = classes.length;
+	subsig_ids = new HashMap();
+	dispatch_keys = new int[n][];
+	dispatch_methods = new SootMethod[n][];
+
+	for (int i = 0; i < n; i++) {
+	    if (classes[i].isInterface()) continue;
+
+	    int[] keys;
+	    SootMethod[] methods;
+	    int p = classes[i].hasSuperclass() ?
+		id(classes[i].getSuperclass()) : -1;
+	    if (p != -1) {
+		keys = dispatch_keys[p];
+		methods = dispatch_methods[p];
+	    } else {
+		// the superclass (if any) is not in the hierarchy;
+		// virtualDispatch would still search it, so start
+		// from its methods
+		keys = new int[0];
+		methods = new SootMethod[0];
+		SootClass outside = classes[i].hasSuperclass() ?
+		    classes[i].getSuperclass() : null;
+		ArrayList chain = new ArrayList();
+		for (; outside != null;
+		     outside = outside.hasSuperclass() ? outside.getSuperclass() : null)
+		    chain.add(outside);
+		for (int c = chain.size() - 1; c >= 0; c--) {
+		    Object[] merged = mergeTable(keys, methods, (SootClass) chain.get(c));
+		    keys = (int[]) merged[0];
+		    methods = (SootMethod[]) merged[1];
+		}
+	    }
+
+	    if (!classes[i].getMethods().isEmpty()) {
+		Object[] merged = mergeTable(keys, methods, classes[i]);
+		keys = (int[]) merged[0];
+		methods = (SootMethod[]) merged[1];
+	    }
+	    dispatch_keys[i] = keys;
+	    dispatch_methods[i] = methods;
+	}
+    }
+
+    // the table (keys, methods) overridden by the methods that class
+    // c declares
+    private Object[] mergeTable(int[] keys, SootMethod[] methods, SootClass c) {
+	List declared = c.getMethods();
+	int[] own_keys = new int[declared.size()];
+	SootMethod[] own = new SootMethod[declared.size()];
+	for (int k = 0; k < own.length; k++) {
+	    own[k] = (SootMethod) declared.get(k);
+	    own_keys[k] = internSubsignature(own[k].getSubSignature());
 	}
+	sortByKey(own_keys, own);
+
+	int[] out_keys = new int[keys.length + own_keys.length];
+	SootMethod[] out = new SootMethod[out_keys.length];
+	int a = 0, b = 0, o = 0;
+	while (a < keys.length || b < own_keys.length) {
+	    if (b == own_keys.length ||
+		(a < keys.length && keys[a] < own_keys[b])) {
+		out_keys[o] = keys[a];
+		out[o++] = methods[a++];
+	    } else {
+		if (a < keys.length && keys[a] == own_keys[b]) a++;
+		out_keys[o] = own_keys[b];
+		out[o++] = own[b++];
+	    }
+	}
+	return new Object[] { Arrays.copyOf(out_keys, o), Arrays.copyOf(out, o) };
+    }
+
+    // insertion sort; classes declare few enough methods for that
+    private static void sortByKey(int[] keys, SootMethod[] methods) {
+	for (int i = 1; i < keys.length; i++) {
+	    int k = keys[i];
+	    SootMethod m = methods[i];
+	    int j = i - 1;
+	    for (; j >= 0 && keys[j] > k; j--) {
+		keys[j + 1] = keys[j];
+		methods[j + 1] = methods[j];
+	    }
+	    keys[j + 1] = k;
+	    methods[j + 1] = m;
+	}
+    }
+
+    private int internSubsignature(String subsig) {
+	Integer i = (Integer) subsig_ids.get(subsig);
+	if (i == null) {
+	    i = new Integer(subsig_ids.size());
+	    subsig_ids.put(subsig, i);
+	}
+	return i.intValue();
     }
 
-    // recursive traversal of superclasses and superinterfaces
-    private void traverse(SootClass sub, SootClass supr) {
-	
-	// sub is a subclass of supr
-	
-	// first, add sub to the set for supr
-	((HashSet)tbl.get(supr)).add(sub);
+    // the id of the subsignature of method m, for use with
+    // virtualDispatch(int,SootClass). returns -1 if no class in the
+    // hierarchy declares a method with this subsignature.
+    public int subsignatureId(SootMethod m) {
+	Integer i = (Integer) subsig_ids.get(m.getSubSignature());
+	return (i == null) ? -1 : i.intValue();
+    }
 
-	// traverse parent classes/interfaces of supr
-	if (supr.hasSuperclass())
-	    traverse(sub,supr.getSuperclass());
-	for (Iterator it = supr.getInterfaces().iterator(); it.hasNext();)
-	    traverse(sub,(SootClass) it.next());
+    // the id of class c, or -1 if c is not in the hierarchy
+    private int id(SootClass c) {
+	Integer i = (Integer) ids.get(c);
+	return (i == null) ? -1 : i.intValue();
     }
 
-    public HashSet possibleReceiverClasses(SootClass static_class) {
+    public Set possibleReceiverClasses(SootClass static_class) {
 
 	// this method answers the following quesiton: if the
 	// compile-time receiver class is static_class, what could be
@@ -55,22 +281,92 @@ public class Hierarchy {
 	// mind that static_class could represent an interface; in
 	// this case we need to return all non-abstract classes that
 	// implement that interface - directly or indirectly through
-	// superclasses. 
+	// superclasses.
 
-	return (HashSet)tbl.get(static_class);
+	// the returned set is a read-only view over the id tables,
+	// so nothing is copied
+	int i = id(static_class);
+	if (i == -1) return Collections.EMPTY_SET;
+	if (implementors[i] != null)
+	    return new ReceiverSet(implementors[i], 0, classes.length,
+				   implementors_size[i]);
+	return new ReceiverSet(concrete, i, subtree_end[i],
+			       concrete_before[subtree_end[i]] -
+			       concrete_before[i]);
+    }
+
+    // the ids in [from,to) that are set in 'bits', viewed as a set
+    // of SootClass objects
+    private class ReceiverSet extends AbstractSet {
+	private final BitSet bits;
+	private final int from;
+	private final int to;
+	private final int size;
+
+	ReceiverSet(BitSet bits, int from, int to, int size) {
+	    this.bits = bits;
+	    this.from = from;
+	    this.to = to;
+	    this.size = size;
+	}
+
+	public int size() { return size; }
+
+	public boolean contains(Object o) {
+	    if (!(o instanceof SootClass)) return false;
+	    int i = id((SootClass) o);
+	    return i >= from && i < to && bits.get(i);
+	}
+
+	public Iterator iterator() {
+	    return new Iterator() {
+		private int next = bits.nextSetBit(from);
+
+		public boolean hasNext() { return next != -1 && next < to; }
+
+		public Object next() {
+		    if (!hasNext()) throw new NoSuchElementException();
+		    SootClass c = classes[next];
+		    next = bits.nextSetBit(next + 1);
+		    return c;
+		}
+
+		public void remove() { throw new UnsupportedOperationException(); }
+	    };
+	}
     }
 
     // this method simulates the effects of the virtual dispatch
-    // performed by the JVM at run time. 
+    // performed by the JVM at run time.
     public SootMethod virtualDispatch(SootMethod static_target,
 				      SootClass receiver_class) {
+	return virtualDispatch(subsignatureId(static_target), receiver_class);
+    }
+
+    // the same, for a subsignature id from subsignatureId(). this is
+    // just a binary search in the dispatch table of the receiver
+    // class, so callers that dispatch one call to many receiver
+    // classes should get the id once and use this version.
+    public SootMethod virtualDispatch(int subsig, SootClass receiver_class) {
+	int i = id(receiver_class);
+	if (subsig == -1 || i == -1 || dispatch_keys[i] == null) return null;
+
+	int k = Arrays.binarySearch(dispatch_keys[i], subsig);
+	return (k < 0) ? null : dispatch_methods[i][k];
+    }
+
+    // the original dispatch, which walks up the superclass chain and
+    // looks for the subsignature in each class. kept as a reference
+    // for the dispatch tables (see bench/DispatchBenchmark.java).
+    SootMethod walkDispatch(SootMethod static_target,
+			    SootClass receiver_class) {
 	SootClass curr = receiver_class;
 
-	// System.out.println(receiver_class + " + " + 
+	// System.out.println(receiver_class + " + " +
 	//                    static_target.getSubSignature());
 
 	while (curr != null) {
-	    
+
 	    if (curr.declaresMethod((static_target.getSubSignature())))
 		return curr.getMethod(static_target.getSubSignature());
 
@@ -84,13 +380,13 @@ public class Hierarchy {
     }
 
     public boolean notAbstract(SootClass c) {
-	return  ! ( c.isInterface() || 
+	return  ! ( c.isInterface() ||
 		    Modifier.isAbstract(c.getModifiers()));
     }
 
     public boolean notLibrary(SootClass c) {
 	String n = c.getName();
-	return ! (n.startsWith("java.") || 
+	return ! (n.startsWith("java.") ||
 		  n.startsWith("javax.") ||
 		  n.startsWith("sun."));
     }
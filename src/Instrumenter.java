@@ -13,6 +13,25 @@ class Instrumenter {
     // contains the pair (YZW,x)
     public static Hashtable id_info = new Hashtable();
 
+    // information about call site ids, as described in file
+    // "sites". for each line "x: Y_Z,R,T" in "sites", the table
+    // contains the pair (Y_Z,x), where x is the dense site id that
+    // the probes pass to RuntimeTracker
+    public static Hashtable site_info = new Hashtable();
+
+    // the dense ids of the sites for which CHA found one receiver
+    // class and one target method (R = T = 1 in "sites"). the probes
+    // of these sites don't pass the receiver (see MyTransformer).
+    public static HashSet monomorphic_sites = new HashSet();
+
+    // the directory of the files of ChaAnalysis, where file "implied"
+    // is written (see MyTransformer)
+    private static String info_dir;
+
+    // the number of call sites in each method: for each method id
+    // Y, the largest Z of any "Y_Z" in file "sites"
+    public static Hashtable site_count = new Hashtable();
+
     // ----------------------------------------------------
     public static void main(String[] args) throws Exception {
 
@@ -25,11 +44,21 @@ class Instrumenter {
 	BodyTransformer bt = MyTransformer.v();
 	Scene.v().getPack("jtp").add(new Transform("jtp.cis788", bt));
 
-	// load info about method ids from file "rmethods"
+	// load info about method and site ids from files "rmethods"
+	// and "sites"
 	loadInfo(args[2]);
       
 	// simply call soot with the same arguments
 	soot.Main.main(args);
+
+	// the coverage implied by the probes that were left out
+	MyTransformer.writeImplied(info_dir);
+    }
+
+    // the number of call sites in the method with the given id
+    public static int siteCount(String method_id) {
+	Integer count = (Integer) site_count.get(method_id);
+	return (count == null) ? 0 : count.intValue();
     }
 
     // --------------------------------------------
@@ -38,8 +67,23 @@ class Instrumenter {
 	// prog_dir is the directory in which the instrumented class
 	// files will be stored (...../phase3/p/CLASSES). in its
 	// parent directory, we have file "rmethods" that contains
-	// info about methods ids.
-       String parent_dir = prog_dir.substring(0,prog_dir.length() - 8);
+	// info about methods ids, and file "sites" that contains info
+	// about call site ids.
+       loadInfoFrom(prog_dir.substring(0,prog_dir.length() - 8));
+    }
+
+    // load the files of ChaAnalysis from directory parent_dir (also
+    // used by TrackerAgent)
+    static void loadInfoFrom(String parent_dir) {
+       info_dir = parent_dir;
+
+       // if ChaAnalysis also wrote the binary form of these files,
+       // read that instead
+       if (new File(parent_dir + "/" + ChaBinary.FILE_NAME).exists()) {
+	   loadBinary(parent_dir + "/" + ChaBinary.FILE_NAME);
+	   return;
+       }
+
        String f = parent_dir + "/rmethods";
        BufferedReader in;
        String line;
@@ -51,6 +95,24 @@ class Instrumenter {
 	     id_info.put(line.substring(x+2),
 			 line.substring(0,x));
 	 }
+	 in.close();
+
+	 // the counts R,T are missing in files of older versions
+	 f = parent_dir + "/sites";
+	 in = new BufferedReader(new FileReader(f));
+	 while( (line = in.readLine()) != null ) {
+	     int x = line.indexOf(':');
+	     String[] fields = line.substring(x+2).split(",");
+	     String site = fields[0];
+	     Integer id = new Integer(line.substring(0,x));
+	     site_info.put(site, id);
+	     if (fields.length == 3 && fields[1].equals("1") && fields[2].equals("1"))
+		 monomorphic_sites.add(id);
+
+	     int y = site.indexOf('_');
+	     addSite(site.substring(0,y), Integer.parseInt(site.substring(y+1)));
+	 }
+	 in.close();
 	     
 	} catch (Exception e) {
 	    // This is not the right way to deal with exceptions ...
@@ -59,4 +121,28 @@ class Instrumenter {
 	}
 
     }
+
+    private static void loadBinary(String f) {
+	try {
+	    ChaBinary bin = ChaBinary.read(f);
+	    for (int i = 0; i < bin.method_id.length; i++)
+		id_info.put(bin.method_name[i],
+			    String.valueOf(bin.method_id[i]));
+	    for (int i = 0; i < bin.site_id.length; i++) {
+		site_info.put(bin.siteName(i), new Integer(bin.site_id[i]));
+		if (bin.monomorphic(i))
+		    monomorphic_sites.add(new Integer(bin.site_id[i]));
+		addSite(String.valueOf(bin.site_method[i]), bin.site_number[i]);
+	    }
+	} catch (Exception e) {
+	    System.out.println("OOPS! " + e);
+	    System.exit(1);
+	}
+    }
+
+    // record that method m_id has at least 'count' call sites
+    private static void addSite(String m_id, int count) {
+	if (count > siteCount(m_id))
+	    site_count.put(m_id, new Integer(count));
+    }
 }
@@ -0,0 +1,295 @@
+import soot.*;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+// precomputed call summaries of library methods, one file per JDK
+// (-Dcha.libsummaries=<file>). library methods (see
+// Hierarchy.notLibrary) never get ids, sites or edges in the output,
+// so the analysis only needs to know which methods they make
+// reachable. the summary of a library method m has two parts:
+//
+//   targets  the library methods that m calls: the targets of its
+//            static and special calls, the library targets of its
+//            virtual calls, and (with on-demand <clinit>) the
+//            initializers of the classes it uses
+//   escapes  the virtual calls of m on a type that application
+//            classes can extend (a non-final class, or an
+//            interface). these are dispatched in every run, on the
+//            application classes only.
+//
+// the summaries do not depend on the application, so a summary
+// computed in one run is reused by every later run with the same JDK.
+// the JDK is identified by a fingerprint of the classpath entry that
+// contains java.lang.Object; a file made for another JDK (or for the
+// other <clinit> mode) is started over.
+//
+// the library targets of a virtual call depend on the library classes
+// that were loaded when the summary was computed. the file keeps the
+// library classes that were loaded in all runs that added summaries
+// ('known'); library classes outside this set are dispatched like
+// application classes (see dispatchedLive()), so a later run that
+// loads more library classes still gets all CHA targets.
+//
+// method and site ids can differ from a run without summaries, since
+// methods are discovered in a different order; the sets of methods
+// and edges in the output are the same.
+
+class LibrarySummaries {
+
+    // bump when the format changes
+    private static final int VERSION = 1;
+
+    static class Entry {
+	final SootMethod[] targets;
+	final MethodSummary.Call[] escapes;
+
+	Entry(SootMethod[] targets, MethodSummary.Call[] escapes) {
+	    this.targets = targets;
+	    this.escapes = escapes;
+	}
+    }
+
+    // the file the summaries are read from and written to
+    private String file_name;
+
+    // the fingerprint of the JDK and the <clinit> mode
+    private String fingerprint;
+
+    // the summaries read from the file, by method signature: the
+    // target signatures, then the receiver class and target signature
+    // of each escape. they are resolved in the Scene by lookup().
+    private HashMap old_entries = new HashMap();
+
+    // the summaries of this run (method signature -> Entry)
+    private HashMap new_entries = new HashMap();
+
+    // the names of the library classes known to the file, and of
+    // those loaded in this run
+    private HashSet known = null;
+    private HashSet loaded = new HashSet();
+
+    private int reused = 0;
+    private int computed = 0;
+
+    // ----------------------------------------------------------
+    public LibrarySummaries(String file_name, String soot_classpath,
+			    Collection library_classes, boolean clinit_on_demand) {
+	this.file_name = file_name;
+	this.fingerprint = fingerprint(soot_classpath) +
+	    (clinit_on_demand ? " clinit-on-demand" : "");
+	for (Iterator it = library_classes.iterator(); it.hasNext();)
+	    loaded.add(((SootClass) it.next()).getName());
+
+	if (new File(file_name).exists()) load();
+	if (known == null) known = loaded;
+    }
+
+    // a library class c that is not known to the file: calls that can
+    // go to c are dispatched on it in every run
+    public boolean dispatchedLive(SootClass c) {
+	return !known.contains(c.getName());
+    }
+
+    // ----------------------------------------------------------
+    // read the file. a file that can't be read, or is for another
+    // JDK, is ignored (everything is then computed again).
+    private void load() {
+	try {
+	    DataInputStream in = new DataInputStream
+		(new BufferedInputStream(new FileInputStream(file_name)));
+	    try {
+		if (in.readInt() != VERSION) return;
+		if (!in.readUTF().equals(fingerprint)) {
+		    System.out.println("Library summaries " + file_name +
+				       " are for another JDK; starting over");
+		    return;
+		}
+		String[] strings = new String[in.readInt()];
+		for (int i = 0; i < strings.length; i++) strings[i] = in.readUTF();
+
+		HashSet classes = new HashSet();
+		int num_known = in.readInt();
+		for (int i = 0; i < num_known; i++) classes.add(strings[in.readInt()]);
+
+		int num_entries = in.readInt();
+		for (int e = 0; e < num_entries; e++) {
+		    String sig = strings[in.readInt()];
+		    String[] entry = new String[in.readInt()];
+		    int num_targets = in.readInt();
+		    for (int i = 0; i < entry.length; i++)
+			entry[i] = strings[in.readInt()];
+		    old_entries.put(sig, new Object[] { new Integer(num_targets), entry });
+		}
+
+		// the entries computed in this run will only have
+		// seen the classes loaded in this run
+		classes.retainAll(loaded);
+		known = classes;
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    System.out.println("Ignoring library summaries " + file_name + ": " + e);
+	    old_entries.clear();
+	    known = null;
+	}
+    }
+
+    // ----------------------------------------------------------
+    // the summary of library method m, or null if there is none yet.
+    // targets in classes that this run didn't load are left out:
+    // they were found by dispatching on receiver classes that this
+    // run doesn't have, so CHA would not find them either.
+    public synchronized Entry lookup(SootMethod m) {
+	String sig = m.getSignature();
+	Entry entry = (Entry) new_entries.get(sig);
+	if (entry != null) return entry;
+
+	Object[] raw = (Object[]) old_entries.get(sig);
+	if (raw == null) return null;
+	int num_targets = ((Integer) raw[0]).intValue();
+	String[] names = (String[]) raw[1];
+
+	ArrayList targets = new ArrayList();
+	ArrayList escapes = new ArrayList();
+	for (int i = 0; i < num_targets; i++)
+	    if (Scene.v().containsMethod(names[i]))
+		targets.add(Scene.v().getMethod(names[i]));
+	for (int i = num_targets; i < names.length; i += 2) {
+	    String receiver = names[i];
+	    String target = names[i + 1];
+	    if (Scene.v().containsClass(receiver) && Scene.v().containsMethod(target))
+		escapes.add(new MethodSummary.Call(MethodSummary.VIRTUAL, "",
+						   Scene.v().getMethod(target),
+						   Scene.v().getSootClass(receiver)));
+	}
+
+	entry = new Entry((SootMethod[]) targets.toArray(new SootMethod[targets.size()]),
+			  (MethodSummary.Call[]) escapes.toArray
+			  (new MethodSummary.Call[escapes.size()]));
+	new_entries.put(sig, entry);
+	reused++;
+	return entry;
+    }
+
+    // record the summary computed for library method m in this run
+    public synchronized void put(SootMethod m, Entry entry) {
+	String sig = m.getSignature();
+	if (!new_entries.containsKey(sig)) computed++;
+	new_entries.put(sig, entry);
+    }
+
+    // ----------------------------------------------------------
+    // write the file: the summaries of this run, plus the old ones
+    // that this run didn't need
+    public synchronized void save() {
+	TreeMap entries = new TreeMap();
+	for (Iterator it = old_entries.keySet().iterator(); it.hasNext();) {
+	    String sig = (String) it.next();
+	    entries.put(sig, old_entries.get(sig));
+	}
+	for (Iterator it = new_entries.keySet().iterator(); it.hasNext();) {
+	    String sig = (String) it.next();
+	    Entry entry = (Entry) new_entries.get(sig);
+	    String[] names = new String[entry.targets.length + 2 * entry.escapes.length];
+	    for (int i = 0; i < entry.targets.length; i++)
+		names[i] = entry.targets[i].getSignature();
+	    for (int i = 0; i < entry.escapes.length; i++) {
+		names[entry.targets.length + 2 * i] = entry.escapes[i].receiver.getName();
+		names[entry.targets.length + 2 * i + 1] = entry.escapes[i].target.getSignature();
+	    }
+	    entries.put(sig, new Object[] { new Integer(entry.targets.length), names });
+	}
+
+	// all strings go to a table first, and are written as indices
+	LinkedHashMap strings = new LinkedHashMap();
+	TreeSet known_sorted = new TreeSet(known);
+	for (Iterator it = known_sorted.iterator(); it.hasNext();) intern(strings, it.next());
+	for (Iterator it = entries.keySet().iterator(); it.hasNext();) {
+	    String sig = (String) it.next();
+	    intern(strings, sig);
+	    String[] names = (String[]) ((Object[]) entries.get(sig))[1];
+	    for (int i = 0; i < names.length; i++) intern(strings, names[i]);
+	}
+
+	try {
+	    DataOutputStream out = new DataOutputStream
+		(new BufferedOutputStream(new FileOutputStream(file_name)));
+	    out.writeInt(VERSION);
+	    out.writeUTF(fingerprint);
+	    out.writeInt(strings.size());
+	    for (Iterator it = strings.keySet().iterator(); it.hasNext();)
+		out.writeUTF((String) it.next());
+	    out.writeInt(known_sorted.size());
+	    for (Iterator it = known_sorted.iterator(); it.hasNext();)
+		out.writeInt(((Integer) strings.get(it.next())).intValue());
+	    out.writeInt(entries.size());
+	    for (Iterator it = entries.keySet().iterator(); it.hasNext();) {
+		String sig = (String) it.next();
+		Object[] raw = (Object[]) entries.get(sig);
+		String[] names = (String[]) raw[1];
+		out.writeInt(((Integer) strings.get(sig)).intValue());
+		out.writeInt(names.length);
+		out.writeInt(((Integer) raw[0]).intValue());
+		for (int i = 0; i < names.length; i++)
+		    out.writeInt(((Integer) strings.get(names[i])).intValue());
+	    }
+	    out.close();
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write library summaries " + file_name, e);
+	}
+
+	System.out.println("Library summaries: reused " + reused +
+			   ", computed " + computed + " (" + entries.size() +
+			   " in " + file_name + ")");
+    }
+
+    private static void intern(LinkedHashMap strings, Object s) {
+	if (!strings.containsKey(s)) strings.put(s, new Integer(strings.size()));
+    }
+
+    // ----------------------------------------------------------
+    // the fingerprint of the JDK: a CRC-32 over the names, CRC-32s
+    // and sizes of all entries of the jar file that contains
+    // java.lang.Object (only its directory is read), or of the class
+    // file of java.lang.Object in a directory
+    private static String fingerprint(String soot_classpath) {
+	StringTokenizer st = new StringTokenizer(soot_classpath, File.pathSeparator);
+	while (st.hasMoreTokens()) {
+	    File f = new File(st.nextToken());
+	    try {
+		if (f.isDirectory()) {
+		    File object = new File(f, "java/lang/Object.class");
+		    if (!object.isFile()) continue;
+		    CRC32 crc = new CRC32();
+		    InputStream in = new FileInputStream(object);
+		    byte[] buf = new byte[8192];
+		    int n;
+		    while ((n = in.read(buf)) > 0) crc.update(buf, 0, n);
+		    in.close();
+		    return "dir " + Long.toHexString(crc.getValue());
+		}
+		if (f.isFile()) {
+		    ZipFile zip = new ZipFile(f);
+		    try {
+			if (zip.getEntry("java/lang/Object.class") == null) continue;
+			CRC32 crc = new CRC32();
+			for (Enumeration e = zip.entries(); e.hasMoreElements();) {
+			    ZipEntry ze = (ZipEntry) e.nextElement();
+			    crc.update(ze.getName().getBytes("UTF-8"));
+			    crc.update((Long.toHexString(ze.getCrc()) + "/" +
+					ze.getSize()).getBytes("UTF-8"));
+			}
+			return "jar " + Long.toHexString(crc.getValue()) + "/" + zip.size();
+		    } finally {
+			zip.close();
+		    }
+		}
+	    } catch (IOException e) {
+		// not a zip file; Soot can't use it either
+	    }
+	}
+	throw new RuntimeException("java.lang.Object is not on the Soot classpath");
+    }
+}
@@ -8,6 +8,29 @@ import java.util.*;
 import java.io.*;
 
 class Loader {
+
+    // with -Dloader.lazy=true, loadJimple does not build any method
+    // bodies. instead, ChaAnalysis gets them through bodyOf(), which
+    // builds each body the first time it is needed, so the bodies of
+    // unreachable methods are never built.
+    private static boolean lazy = Boolean.getBoolean("loader.lazy");
+
+    // the bodies are always built by one thread at a time: building a
+    // body resolves types and methods, interns RefTypes and updates
+    // the hierarchy, all in the global Scene, which is not
+    // thread-safe, and the jtp pack has no transforms of its own here
+    // that could run on the side. the parallel part of the analysis
+    // is summarizing the bodies once they are built; see ChaAnalysis.
+    // in lazy mode, bodies are built while other threads summarize,
+    // and summarizing reads the Scene too, so it has to hold the
+    // lock of body building, scene_lock. (bodies_built is only
+    // changed by the loading thread, or under scene_lock.)
+    public static final Object scene_lock = Loader.class;
+
+    // the number of concrete methods in the loaded classes, and the
+    // number of bodies that were built for them
+    private static int concrete_methods = 0;
+    private static int bodies_built = 0;
     
     public void loadJimple(String[] args) {
 
@@ -18,7 +41,8 @@ class Loader {
 	//just for debugging
 	//	soot.Main.setVerbose(true);
 
-	System.out.print("Loading [takes about a minute] ... ");
+	System.out.print(lazy ? "Loading ... " :
+			 "Loading [takes about a minute] ... ");
 	System.out.flush();
 
 	// Load necessary classes reachable from the main class
@@ -62,10 +86,13 @@ class Loader {
 		 methodIt.hasNext();) {
 		SootMethod m = (SootMethod) methodIt.next();
 		if (!m.isConcrete()) continue;
+		concrete_methods++;
+		if (lazy) continue;
 
 		// Build Jimple body and transform it.
 		JimpleBody body = (JimpleBody) m.retrieveActiveBody();
 		Scene.v().getPack("jtp").apply(body);
+		bodies_built++;
 
 		// after this, m.hasActiveBody() returns true and
 		// m.getActiveBody() works fine
@@ -86,6 +113,43 @@ class Loader {
 			       " lib)\n");
     }
 
+    // whether the bodies are built by bodyOf(), i.e. possibly while
+    // the analysis runs
+    public static boolean isLazy() {
+	return lazy;
+    }
+
+    // ----------------------------------------------------
+    // the body of concrete method m. in lazy mode, the body is built
+    // (and transformed by the jtp pack) on the first call. Soot is
+    // not thread-safe, so the parallel analysis builds one body at a
+    // time, under scene_lock.
+    public static Body bodyOf(SootMethod m) {
+	if (!lazy) return m.getActiveBody();
+
+	synchronized (scene_lock) {
+	    if (!m.hasActiveBody()) {
+		JimpleBody body = (JimpleBody) m.retrieveActiveBody();
+		Scene.v().getPack("jtp").apply(body);
+		bodies_built++;
+	    }
+	    return m.getActiveBody();
+	}
+    }
+
+    // print how many bodies were built, and how many were skipped
+    // because their methods were never reached
+    public static synchronized void reportBodies() {
+	System.out.println("Built " + bodies_built + " of " +
+			   concrete_methods + " method bodies (" +
+			   (concrete_methods - bodies_built) + " skipped)");
+    }
+
+    public static synchronized void reportMetrics(Metrics metrics) {
+	metrics.count("concrete_methods", concrete_methods);
+	metrics.count("bodies_built", bodies_built);
+    }
+
     // ----------------------------------------------------
     // load all CUT classes, if they are not already loaded
     public static void loadAllCUT(String dir)
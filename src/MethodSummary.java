@@ -0,0 +1,186 @@
+import soot.*;
+import soot.jimple.*;
+import java.io.*;
+import java.util.*;
+
+// the calls in the body of one method, in the order in which they
+// appear in the JIMPLE, the classes that the body instantiates and
+// the classes whose initialization it triggers.
+// ChaAnalysis builds one summary per reachable method; the summary is
+// all it needs from the body, both to find the methods that become
+// reachable and to write the output files.
+
+class MethodSummary {
+
+    // the kinds of calls
+    // SIMPLE:  staticinvoke or specialinvoke; the run-time target is
+    //          the compile-time target
+    // VIRTUAL: virtualinvoke or interfaceinvoke on an object whose
+    //          compile-time type is a class or interface
+    // OTHER:   any other call (e.g. a virtual call on an array); it
+    //          is ignored, but it still counts as a call site
+    static final int SIMPLE = 0;
+    static final int VIRTUAL = 1;
+    static final int OTHER = 2;
+
+    static class Call {
+	final int kind;
+
+	// the JIMPLE text of the call, as written to file "calls"
+	final String text;
+
+	// the compile-time target method
+	final SootMethod target;
+
+	// for VIRTUAL calls, the compile-time class of the receiver
+	final SootClass receiver;
+
+	Call(int kind, String text, SootMethod target, SootClass receiver) {
+	    this.kind = kind;
+	    this.text = text;
+	    this.target = target;
+	    this.receiver = receiver;
+	}
+    }
+
+    // the calls, in order; the call with index i has site number i+1
+    final Call[] calls;
+
+    // the classes of the objects created by the body: the classes of
+    // all new expressions, and java.lang.String if the body uses
+    // string constants. without duplicates, in the order in which
+    // they appear. (only used by RTA, see ChaAnalysis.)
+    final SootClass[] allocated;
+
+    // the classes that the JVM initializes (if they are not yet) when
+    // the body runs: the classes of new expressions, and the
+    // declaring classes of the static methods it calls and of the
+    // static fields it reads or writes. without duplicates, in the
+    // order in which they appear. (only used with on-demand <clinit>,
+    // see ChaAnalysis.)
+    final SootClass[] initialized;
+
+    MethodSummary(Call[] calls, SootClass[] allocated, SootClass[] initialized) {
+	this.calls = calls;
+	this.allocated = allocated;
+	this.initialized = initialized;
+    }
+
+    // ------------------------------------------------------------
+    // summarize a method body by going through all its statements
+    static MethodSummary of(Body body) {
+	ArrayList calls = new ArrayList();
+	LinkedHashSet allocated = new LinkedHashSet();
+	LinkedHashSet initialized = new LinkedHashSet();
+	for (Iterator uIt = body.getUnits().iterator(); uIt.hasNext();) {
+	    Stmt s = (Stmt) uIt.next();
+	    if (s.containsInvokeExpr())
+		calls.add(of((InvokeExpr) s.getInvokeExpr()));
+	    // (a static field that is written is in a def box)
+	    for (Iterator bIt = s.getUseAndDefBoxes().iterator(); bIt.hasNext();) {
+		Value v = ((ValueBox) bIt.next()).getValue();
+		if (v instanceof NewExpr) {
+		    SootClass c = ((NewExpr) v).getBaseType().getSootClass();
+		    allocated.add(c);
+		    initialized.add(c);
+		} else if (v instanceof StringConstant)
+		    allocated.add(Scene.v().getSootClass("java.lang.String"));
+		else if (v instanceof StaticInvokeExpr)
+		    initialized.add(((StaticInvokeExpr) v).getMethod().getDeclaringClass());
+		else if (v instanceof StaticFieldRef)
+		    initialized.add(((StaticFieldRef) v).getField().getDeclaringClass());
+	    }
+	}
+	return new MethodSummary((Call[]) calls.toArray(new Call[calls.size()]),
+				 toArray(allocated), toArray(initialized));
+    }
+
+    private static SootClass[] toArray(Set classes) {
+	return (SootClass[]) classes.toArray(new SootClass[classes.size()]);
+    }
+
+    private static Call of(InvokeExpr call) {
+	if (call instanceof StaticInvokeExpr ||
+	    call instanceof SpecialInvokeExpr)
+	    return new Call(SIMPLE, call.toString(), call.getMethod(), null);
+
+	if (call instanceof VirtualInvokeExpr ||
+	    call instanceof InterfaceInvokeExpr) {
+	    // the compile-time type of the receiver expression. calls
+	    // on arrays (e.g. clone()) don't have a receiver class.
+	    Type static_type = ((InstanceInvokeExpr)call).getBase().getType();
+	    if (static_type instanceof RefType)
+		return new Call(VIRTUAL, call.toString(), call.getMethod(),
+				((RefType) static_type).getSootClass());
+	}
+
+	return new Call(OTHER, call.toString(), call.getMethod(), null);
+    }
+
+    // ------------------------------------------------------------
+    // summaries can be stored on disk (see ChaCache). methods and
+    // classes are stored by name and looked up in the Scene again
+    // when the summary is read.
+    void write(DataOutputStream out) throws IOException {
+	out.writeInt(calls.length);
+	for (int i = 0; i < calls.length; i++) {
+	    out.writeByte(calls[i].kind);
+	    out.writeUTF(calls[i].text);
+	    out.writeUTF(calls[i].target.getSignature());
+	    out.writeUTF(calls[i].receiver == null ? "" :
+			 calls[i].receiver.getName());
+	}
+	writeClasses(out, allocated);
+	writeClasses(out, initialized);
+    }
+
+    private static void writeClasses(DataOutputStream out, SootClass[] classes)
+	throws IOException {
+	out.writeInt(classes.length);
+	for (int i = 0; i < classes.length; i++)
+	    out.writeUTF(classes[i].getName());
+    }
+
+    // read a summary written by write(). returns null if a method or
+    // class that it refers to is no longer in the Scene.
+    static MethodSummary read(DataInputStream in) throws IOException {
+	Call[] calls = new Call[in.readInt()];
+	boolean valid = true;
+	for (int i = 0; i < calls.length; i++) {
+	    int kind = in.readByte();
+	    String text = in.readUTF();
+	    String target = in.readUTF();
+	    String receiver = in.readUTF();
+
+	    // keep reading to the end of the summary even when it is
+	    // not valid
+	    if (!valid) continue;
+	    if (!Scene.v().containsMethod(target) ||
+		(receiver.length() != 0 && !Scene.v().containsClass(receiver))) {
+		valid = false;
+		continue;
+	    }
+	    calls[i] = new Call(kind, text, Scene.v().getMethod(target),
+				receiver.length() == 0 ? null :
+				Scene.v().getSootClass(receiver));
+	}
+	SootClass[] allocated = readClasses(in);
+	SootClass[] initialized = readClasses(in);
+	if (!valid || allocated == null || initialized == null) return null;
+	return new MethodSummary(calls, allocated, initialized);
+    }
+
+    // null if a class is no longer in the Scene
+    private static SootClass[] readClasses(DataInputStream in) throws IOException {
+	SootClass[] classes = new SootClass[in.readInt()];
+	boolean valid = true;
+	for (int i = 0; i < classes.length; i++) {
+	    String name = in.readUTF();
+	    if (!Scene.v().containsClass(name))
+		valid = false;
+	    else
+		classes[i] = Scene.v().getSootClass(name);
+	}
+	return valid ? classes : null;
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+// timing and counters for a run of ChaMain. each phase (loading, the
+// analysis, writing the output) records its wall time, the bytes it
+// allocated and the high-water mark of the heap while it ran; the
+// analysis adds counters. everything is printed at the end, and
+// written to file "metrics.json" in the output directory.
+//
+// the allocated bytes are computed from the heap: the growth of the
+// used heap during the phase, plus what the garbage collections of
+// the phase freed. this counts the allocations of all threads (the
+// worker threads of ChaAnalysis too), but it is only
+// approximate: the JVM reports a collection a little after it ends,
+// so one that ends right at the end of a phase may be counted in the
+// next one.
+
+class Metrics {
+
+    // the finished phases
+    private ArrayList phases = new ArrayList();
+
+    // the counters (Long or Double), in the order in which they were
+    // first set
+    private LinkedHashMap counters = new LinkedHashMap();
+
+    private static class Phase {
+	String name;
+	long start_nanos;
+	long start_used;
+	long start_freed;
+	long wall_ms;
+	long allocated;
+	long peak_heap;
+    }
+
+    private Phase current = null;
+
+    // the names of the heap memory pools
+    private HashSet heap_pools = new HashSet();
+
+    // the bytes freed by all garbage collections so far
+    private long freed = 0;
+
+    // ------------------------------------------------------------
+    public Metrics() {
+	for (Iterator it = heapPools().iterator(); it.hasNext();)
+	    heap_pools.add(((MemoryPoolMXBean) it.next()).getName());
+
+	// listen to the end of each garbage collection
+	NotificationListener listener = new NotificationListener() {
+		public void handleNotification(Notification n, Object handback) {
+		    if (n.getType().equals(GarbageCollectionNotificationInfo
+					   .GARBAGE_COLLECTION_NOTIFICATION))
+			collected(GarbageCollectionNotificationInfo
+				  .from((CompositeData) n.getUserData()));
+		}
+	    };
+	for (Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+	     it.hasNext();) {
+	    Object gc = it.next();
+	    if (gc instanceof NotificationEmitter)
+		((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+	}
+    }
+
+    // a garbage collection ended: add up what it freed in the heap
+    private void collected(GarbageCollectionNotificationInfo info) {
+	long before = heapUsed(info.getGcInfo().getMemoryUsageBeforeGc());
+	long after = heapUsed(info.getGcInfo().getMemoryUsageAfterGc());
+	synchronized (this) {
+	    if (before > after) freed += before - after;
+	}
+    }
+
+    // the used bytes of the heap pools in a map from pool names to
+    // MemoryUsage
+    private long heapUsed(Map usage) {
+	long used = 0;
+	for (Iterator it = usage.entrySet().iterator(); it.hasNext();) {
+	    Map.Entry e = (Map.Entry) it.next();
+	    if (heap_pools.contains(e.getKey()))
+		used += ((MemoryUsage) e.getValue()).getUsed();
+	}
+	return used;
+    }
+
+    private static List heapPools() {
+	ArrayList result = new ArrayList();
+	for (Iterator it = ManagementFactory.getMemoryPoolMXBeans().iterator();
+	     it.hasNext();) {
+	    MemoryPoolMXBean pool = (MemoryPoolMXBean) it.next();
+	    if (pool.getType() == MemoryType.HEAP) result.add(pool);
+	}
+	return result;
+    }
+
+    // ------------------------------------------------------------
+    // the phases. a phase ends when the next one starts, or at
+    // endPhase().
+    public void startPhase(String name) {
+	if (current != null) endPhase();
+
+	current = new Phase();
+	current.name = name;
+	for (Iterator it = heapPools().iterator(); it.hasNext();)
+	    ((MemoryPoolMXBean) it.next()).resetPeakUsage();
+	current.start_used = ManagementFactory.getMemoryMXBean()
+	    .getHeapMemoryUsage().getUsed();
+	synchronized (this) {
+	    current.start_freed = freed;
+	}
+	current.start_nanos = System.nanoTime();
+    }
+
+    public void endPhase() {
+	if (current == null) return;
+
+	current.wall_ms = (System.nanoTime() - current.start_nanos) / 1000000;
+	long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	synchronized (this) {
+	    current.allocated = Math.max(0, used - current.start_used +
+					 freed - current.start_freed);
+	}
+	for (Iterator it = heapPools().iterator(); it.hasNext();)
+	    current.peak_heap += ((MemoryPoolMXBean) it.next()).getPeakUsage().getUsed();
+
+	phases.add(current);
+	current = null;
+    }
+
+    // ------------------------------------------------------------
+    // the counters
+    public void count(String name, long value) {
+	counters.put(name, new Long(value));
+    }
+
+    public void count(String name, double value) {
+	counters.put(name, new Double(value));
+    }
+
+    // ------------------------------------------------------------
+    // print the phases, and write everything to a JSON file
+    public void report(String file_name) {
+	endPhase();
+
+	for (Iterator it = phases.iterator(); it.hasNext();) {
+	    Phase p = (Phase) it.next();
+	    System.out.println("Phase " + p.name + ": " + p.wall_ms + " ms, " +
+			       (p.allocated >> 20) + " MB allocated, " +
+			       (p.peak_heap >> 20) + " MB peak heap");
+	}
+
+	try {
+	    PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file_name)));
+	    out.println("{");
+	    out.println("  \"phases\": [");
+	    for (int i = 0; i < phases.size(); i++) {
+		Phase p = (Phase) phases.get(i);
+		out.println("    { \"name\": " + quote(p.name) +
+			    ", \"wall_ms\": " + p.wall_ms +
+			    ", \"allocated_bytes\": " + p.allocated +
+			    ", \"peak_heap_bytes\": " + p.peak_heap + " }" +
+			    (i + 1 < phases.size() ? "," : ""));
+	    }
+	    out.println("  ],");
+	    out.println("  \"counters\": {");
+	    for (Iterator it = counters.keySet().iterator(); it.hasNext();) {
+		String name = (String) it.next();
+		out.println("    " + quote(name) + ": " + counters.get(name) +
+			    (it.hasNext() ? "," : ""));
+	    }
+	    out.println("  }");
+	    out.println("}");
+	    out.close();
+	    if (out.checkError())
+		throw new IOException("Cannot write " + file_name);
+	} catch (IOException e) {
+	    throw new RuntimeException("Cannot write " + file_name, e);
+	}
+    }
+
+    private static String quote(String s) {
+	StringBuffer result = new StringBuffer("\"");
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\') result.append('\\');
+	    result.append(c);
+	}
+	return result.append('"').toString();
+    }
+}
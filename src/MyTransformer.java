@@ -3,6 +3,7 @@ import soot.jimple.*;
 import soot.jimple.internal.*;
 import soot.util.*;
 import java.util.*;
+import java.io.*;
 
 
 class MyTransformer extends BodyTransformer {
@@ -15,7 +16,12 @@ class MyTransformer extends BodyTransformer {
     private static SootClass tracker_class;
 
     // the method inside the tracker class that should be invoked
-    // immediately before an instrumented call site. 
+    // immediately before an instrumented call site. both versions
+    // take the dense site id from file "sites"; before_call1 also
+    // takes the receiver object of a virtual/interface call. a
+    // virtual/interface call that CHA found monomorphic (one receiver
+    // class, one target) gets before_call0 as well: its only
+    // annotated edge is covered whenever the site runs.
     private static SootMethod before_call0;
     private static SootMethod before_call1;
 
@@ -23,6 +29,43 @@ class MyTransformer extends BodyTransformer {
     // entry of each instrumented method.
     private static SootMethod method_entry;
 
+    // with -Dinstrument.guards=true, the probes for method entries
+    // and for staticinvoke/specialinvoke sites only call the tracker
+    // the first time they run. each instrumented class gets a static
+    // boolean array with one flag per such probe; the probe checks
+    // its flag, and after calling the tracker sets it, so from then
+    // on it costs a field load, an array load and a branch. the
+    // array is created by whichever instrumented method of the class
+    // runs first. virtualinvoke/interfaceinvoke sites are not
+    // guarded, since the tracker needs to see every receiver class
+    // (except at monomorphic sites, which are guarded too).
+    // (guards don't go with the profiling mode of RuntimeTracker,
+    // which counts every execution of a probe.)
+    private static boolean use_guards = Boolean.getBoolean("instrument.guards");
+
+    // with -Dinstrument.minimal=true, probes whose coverage is implied
+    // by another probe in the same method are left out (see
+    // ProbePlacement), and the implications are written to file
+    // "implied" for RuntimeTracker.
+    private static boolean minimal = Boolean.getBoolean("instrument.minimal");
+
+    // TrackerAgent turns minimal probes off: it instruments classes
+    // after RuntimeTracker has read file "implied"
+    static void setMinimal(boolean on) { minimal = on; }
+
+    // the lines of file "implied", from all instrumented methods
+    private static ArrayList implied = new ArrayList();
+
+    // the name of the flag array field added to instrumented classes
+    private static String probes_name = "__probes";
+
+    // the layout of the flag arrays: for each instrumented method,
+    // the index of its first flag (the one for its entry; the flag
+    // for its x-th call site is x after that), and for each class,
+    // the size of its array
+    private static Hashtable probe_offsets = new Hashtable();
+    private static Hashtable probe_sizes = new Hashtable();
+
     // some Soot-related code (since we are inheriting from Soot's
     // BodyTransformer)
     private static MyTransformer instance = new MyTransformer();
@@ -45,17 +88,18 @@ class MyTransformer extends BodyTransformer {
 	    tracker_class = 
 	    	Scene.v().getSootClass(tracker_name);
 	    before_call0 = 
-	    	tracker_class.getMethod("void beforeCall(java.lang.String)");
+	    	tracker_class.getMethod("void beforeCall(int)");
 	    before_call1 = 
-			tracker_class.getMethod("void beforeCall(java.lang.String,java.lang.Object)");
+			tracker_class.getMethod("void beforeCall(int,java.lang.Object)");
 	    method_entry = 
 	    	tracker_class.getMethod("void methodEntry(int)");
 	}
 
 	// no instrumentation will be inserted in the body of the
-	// tracker classs
-	if (method.getDeclaringClass().
-	    getName().equals(tracker_name)) return;
+	// tracker classs, or of the helper classes nested in it
+	String class_name = method.getDeclaringClass().getName();
+	if (class_name.equals(tracker_name) ||
+	    class_name.startsWith(tracker_name + "$")) return;
 
 	// the id of this method, as read from "rmethods.cut"
 	String method_id = (String) 
@@ -93,17 +137,41 @@ class MyTransformer extends BodyTransformer {
 
 	// the first "real" statement
 	s = (Stmt) stmtIt.next();
+
+	// the method id
+	int m_id = Integer.parseInt(method_id);
+
+	// with minimal probes, find out first which probes are needed
+	ProbePlacement placement = minimal ? placeProbes(body, s, method_id) : null;
+
+	// with guards, load the flag array of the class into a local
+	// (creating the array if this is the first instrumented method
+	// of the class to run). interfaces can't have private static
+	// fields, so their <clinit> bodies are never guarded.
+	Local probes = null;
+	Local flag = null;
+	int offset = 0;
+	if (use_guards && !method.getDeclaringClass().isInterface()) {
+	    probes = Jimple.v().newLocal("$probes",
+					  ArrayType.v(BooleanType.v(),1));
+	    flag = Jimple.v().newLocal("$probe_flag", BooleanType.v());
+	    body.getLocals().add(probes);
+	    body.getLocals().add(flag);
+	    offset = probeOffset(method);
+	    insertProbeArray(units, method.getDeclaringClass(), probes, s);
+	}
 	
 	// create a JIMPLE staticinvoke expression that calls
 	// "methodEntry" in the tracker class. The actual parameter of
 	// the call is the method id of the method whose body we are
 	// currenty processing.
-	int m_id = Integer.parseInt(method_id);
 	StaticInvokeExpr sc = 
 	    Jimple.v().newStaticInvokeExpr(method_entry,IntConstant.v(m_id));
 
 	// insert the staticinvoke before the first real statement
-	units.insertBefore(Jimple.v().newInvokeStmt(sc),s);
+	if (placement == null || placement.keepsEntry())
+	    insertProbe(units, Jimple.v().newInvokeStmt(sc), s,
+			probes, flag, offset);
 
 	// process all statements, starting with the first one.
 	// insert instrumentation before each call site. 
@@ -123,41 +191,45 @@ class MyTransformer extends BodyTransformer {
 		
 		String call_id = method_id + "_" + call_site_id;
 
+		// the dense id of the call site, as read from "sites"
+		Integer site = (Integer) Instrumenter.site_info.get(call_id);
+
 		// two cases here: virtualinvoke/interfaceinvoke and
-		// staticinvoke/specialinvoke. For static/special, do
-		// exactly what was done in phase 3 (as shown in the
-		// code below). For virtual/interfaceinvoke, call the
-		// version of beforeCall that has an extra Object
+		// staticinvoke/specialinvoke. For static/special, call
+		// "beforeCall(site)". For virtual/interfaceinvoke, call
+		// the version of beforeCall that has an extra Object
 		// parameter, which is a pointer to the receiver
 		// object.  For example, if we have a call site
-		// "x.m()" with id "56_78", we need to insert statement
-		// "beforeCall("56_78",x)". 
-
-		// Right now, the code is correct only if (c
-		// instanceof StaticInvokeExpr) or (c instanceof
-		// SpecialInvokeExpr). However, if (c instanceof
-		// VirtualInvokeExpr) or (c instanceof
-		// InterfaceInvokeExpr), we need a different kind of
-		// instrumentation, as described above. To get the
-		// local variable that points to the receiver object
-		// at the call site, cast c to an InstanceInvokeExpr,
-		// call getBase() on it, and then cast it to Local.
-		
-		// YOUR CODE HERE
+		// "x.m()" with id "56_78" and dense id 123, we insert
+		// statement "beforeCall(123,x)". Monomorphic
+		// virtual/interface sites are treated like
+		// static/special ones.
 
-		if(c instanceof VirtualInvokeExpr || c instanceof InterfaceInvokeExpr)
-		{
+		// sites that are not in file "sites" were never seen by
+		// ChaAnalysis, so there is nothing to record for them
+		if (site != null &&
+		    (placement == null || placement.keepsSite(site.intValue()))) {
+
+		    if(needsReceiver(c, site))
+		    {
 			sc = Jimple.v().newStaticInvokeExpr
-	    		(before_call1,StringConstant.v(call_id),(Local)(((InstanceInvokeExpr)c).getBase()));
-		}
-		else
-		{
+			    (before_call1,IntConstant.v(site.intValue()),
+			     (Local)(((InstanceInvokeExpr)c).getBase()));
+
+			// insert the staticinvoke before the call
+			units.insertBefore(Jimple.v().newInvokeStmt(sc),s);
+		    }
+		    else
+		    {
 			sc = Jimple.v().newStaticInvokeExpr
-		    	(before_call0,StringConstant.v(call_id));
-		}
+			    (before_call0,IntConstant.v(site.intValue()));
 
-		// insert the staticinvoke before the call
-		units.insertBefore(Jimple.v().newInvokeStmt(sc),s);
+			// insert the (possibly guarded) staticinvoke
+			// before the call
+			insertProbe(units, Jimple.v().newInvokeStmt(sc), s,
+				    probes, flag, offset + call_site_id);
+		    }
+		}
 		
 		// update the counter of call sites
 		call_site_id ++;
@@ -166,6 +238,145 @@ class MyTransformer extends BodyTransformer {
 	} while (stmtIt.hasNext());
     }
 
+    // ----------------------------------------------------------------
+    // whether the probe of call c, with dense site id 'site', has to
+    // pass the receiver to the tracker: for virtual/interface calls
+    // that CHA didn't find monomorphic
+    private static boolean needsReceiver(InvokeExpr c, Integer site) {
+	return (c instanceof VirtualInvokeExpr || c instanceof InterfaceInvokeExpr) &&
+	    !Instrumenter.monomorphic_sites.contains(site);
+    }
+
+    // ----------------------------------------------------------------
+    // find the probes of the body that are needed, before anything is
+    // inserted: the entry probe at the first real statement 'first',
+    // and the probes of the call sites that are in file "sites"
+    private ProbePlacement placeProbes(Body body, Stmt first, String method_id) {
+	ProbePlacement placement = new ProbePlacement(body);
+	placement.addEntry(first, Integer.parseInt(method_id));
+
+	int call_site_id = 1;
+	for (Iterator it = body.getUnits().iterator(); it.hasNext();) {
+	    Stmt s = (Stmt) it.next();
+	    if (!s.containsInvokeExpr()) continue;
+	    InvokeExpr c = (InvokeExpr) s.getInvokeExpr();
+	    Integer site = (Integer)
+		Instrumenter.site_info.get(method_id + "_" + call_site_id);
+	    if (site != null)
+		placement.addSite(s, site.intValue(), needsReceiver(c, site));
+	    call_site_id++;
+	}
+
+	List lines = placement.place();
+	synchronized (implied) {
+	    implied.addAll(lines);
+	}
+	return placement;
+    }
+
+    // write file "implied" to directory dir, in sorted order. without
+    // minimal probes, an old file is removed.
+    static void writeImplied(String dir) throws IOException {
+	File f = new File(dir + "/implied");
+	if (!minimal) {
+	    f.delete();
+	    return;
+	}
+	ArrayList lines = new ArrayList(implied);
+	Collections.sort(lines);
+	PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+	for (Iterator it = lines.iterator(); it.hasNext();)
+	    out.println(it.next());
+	out.close();
+	if (out.checkError()) throw new IOException("Cannot write " + f);
+    }
+
+    // ----------------------------------------------------------------
+    // insert 'probe' before statement s. if 'probes' is not null, it
+    // holds the flag array of the class, and the probe is wrapped as
+    //
+    //     flag = probes[slot];
+    //     if flag != 0 goto skip;
+    //     probe;
+    //     probes[slot] = 1;
+    //   skip:
+    //     s
+    //
+    // jumps that went to s now go to the first inserted statement.
+    private void insertProbe(Chain units, Stmt probe, Stmt s,
+			     Local probes, Local flag, int slot) {
+	if (probes == null) {
+	    units.insertBefore(probe,s);
+	    return;
+	}
+
+	Stmt skip = Jimple.v().newNopStmt();
+	units.insertBefore(Jimple.v().newAssignStmt
+			   (flag, Jimple.v().newArrayRef(probes, IntConstant.v(slot))), s);
+	units.insertBefore(Jimple.v().newIfStmt
+			   (Jimple.v().newNeExpr(flag, IntConstant.v(0)), skip), s);
+	units.insertBefore(probe,s);
+	units.insertBefore(Jimple.v().newAssignStmt
+			   (Jimple.v().newArrayRef(probes, IntConstant.v(slot)),
+			    IntConstant.v(1)), s);
+	units.insertBefore(skip,s);
+    }
+
+    // insert, before statement s, code that loads the flag array of
+    // class c into local 'probes' and creates it if it is still null.
+    // two threads may both create it; then the flags in one of the
+    // arrays are lost, which only means a few extra tracker calls.
+    private void insertProbeArray(Chain units, SootClass c,
+				  Local probes, Stmt s) {
+	SootField field = probeField(c);
+	int size = ((Integer) probe_sizes.get(c)).intValue();
+
+	Stmt ready = Jimple.v().newNopStmt();
+	units.insertBefore(Jimple.v().newAssignStmt
+			   (probes, Jimple.v().newStaticFieldRef(field)), s);
+	units.insertBefore(Jimple.v().newIfStmt
+			   (Jimple.v().newNeExpr(probes, NullConstant.v()), ready), s);
+	units.insertBefore(Jimple.v().newAssignStmt
+			   (probes, Jimple.v().newNewArrayExpr
+			    (BooleanType.v(), IntConstant.v(size))), s);
+	units.insertBefore(Jimple.v().newAssignStmt
+			   (Jimple.v().newStaticFieldRef(field), probes), s);
+	units.insertBefore(ready,s);
+    }
+
+    // the flag array field of class c; added to the class the first
+    // time one of its methods is instrumented
+    private static synchronized SootField probeField(SootClass c) {
+	Type t = ArrayType.v(BooleanType.v(),1);
+	if (c.declaresField(probes_name, t))
+	    return c.getField(probes_name, t);
+
+	SootField field = new SootField(probes_name, t,
+					Modifier.PRIVATE | Modifier.STATIC);
+	c.addField(field);
+	return field;
+    }
+
+    // the index of the first flag of method m in the flag array of
+    // its class. the layout of the whole class is computed the first
+    // time: each method that has an id gets one flag for its entry
+    // and one for each of its call sites.
+    private static synchronized int probeOffset(SootMethod m) {
+	SootClass c = m.getDeclaringClass();
+	if (!probe_sizes.containsKey(c)) {
+	    int size = 0;
+	    for (Iterator it = c.getMethods().iterator(); it.hasNext();) {
+		SootMethod cm = (SootMethod) it.next();
+		String id = (String) Instrumenter.id_info.get(cm.toString());
+		if (id == null) continue;
+		probe_offsets.put(cm, new Integer(size));
+		size += 1 + Instrumenter.siteCount(id);
+	    }
+	    probe_sizes.put(c, new Integer(size));
+	}
+	return ((Integer) probe_offsets.get(m)).intValue();
+    }
+
     // -------------------------------
     void Assert(boolean x, String s) {
 	// there are better ways to do this
@@ -0,0 +1,384 @@
+import soot.*;
+import soot.jimple.*;
+import soot.toolkits.graph.*;
+import soot.util.*;
+import java.util.*;
+
+// minimal probe placement for MyTransformer (-Dinstrument.minimal=true).
+// the probes of a method are at its first real statement (the entry
+// probe) and before its call sites. two probe points that are control
+// equivalent, i.e. one dominates the other and the other post-dominates
+// the first, always run together: whenever one of them runs, so does
+// the other. from each such group only one probe is kept, and the
+// coverage of the others is implied by it; MyTransformer writes these
+// implications to file "implied", and RuntimeTracker applies them at
+// end(), so the reported coverage does not change. for example, the
+// entry probe is dropped when the method starts with an instrumented
+// call (possibly after statements that neither branch nor throw).
+// an entry probe is also dropped when every path from the entry runs
+// one of several call probes before anything can throw or return
+// (e.g. "if (c) a(); else b();"): the method is then covered exactly
+// when one of those sites is.
+//
+// RuntimeTracker also gives an implied probe the counts of the probes
+// that imply it, in its profiling mode, so these have to run exactly
+// as often: a probe is only implied by one that is not on a loop (and
+// is not on a loop itself), and an entry probe only by several sites
+// of which no one can run after another one, or twice.
+//
+// the probes of virtual/interface calls are always kept, since the
+// tracker needs to see their receivers; a group keeps a virtual probe
+// if it has one, otherwise the first static call probe, otherwise the
+// entry probe. (the probes of monomorphic virtual/interface sites
+// don't pass the receiver, and count as static ones.)
+//
+// the dominators are computed on the CompleteUnitGraph of the body.
+// post-dominators are computed towards a virtual exit that every
+// return and throw goes to, and so does every statement that can
+// throw an exception. a call can always throw, so the probes of two
+// different calls are never equivalent, even in one basic block (the
+// first call may throw and skip the second one); this is what keeps
+// the reported coverage exact. asynchronous exceptions, such as
+// running out of memory, are not taken into account.
+
+class ProbePlacement {
+
+    // the kinds of probe points
+    private static final int ENTRY = 0;
+    private static final int STATIC = 1;
+    private static final int VIRTUAL = 2;
+
+    // the statements of the body, numbered in chain order; the
+    // virtual exit has number 'exit'
+    private HashMap numbers = new HashMap();
+    private int exit;
+
+    // the successors of each statement, and of the virtual exit
+    private ArrayList[] succs;
+
+    // the immediate dominator and post-dominator of each statement
+    // (-1 for statements that are not reachable from the entry, or
+    // that can't reach the exit)
+    private int[] idom;
+    private int[] ipdom;
+
+    // the probe points, in order: statement number, kind, and the
+    // site id (or the method id for the entry probe)
+    private ArrayList point_node = new ArrayList();
+    private ArrayList point_kind = new ArrayList();
+    private ArrayList point_id = new ArrayList();
+
+    // for each point, the point whose probe implies it (itself if
+    // the probe is kept, -1 if several probes imply it)
+    private int[] implier;
+
+    // ------------------------------------------------------------
+    public ProbePlacement(Body body) {
+	UnitGraph graph = new CompleteUnitGraph(body);
+	Chain units = body.getUnits();
+	int n = 0;
+	for (Iterator it = units.iterator(); it.hasNext();)
+	    numbers.put(it.next(), new Integer(n++));
+	exit = n;
+
+	// the successors of each statement, and for the reverse graph
+	// the predecessors, with the edges to the virtual exit
+	succs = new ArrayList[n + 1];
+	ArrayList[] preds = new ArrayList[n + 1];
+	for (int i = 0; i <= n; i++) {
+	    succs[i] = new ArrayList();
+	    preds[i] = new ArrayList();
+	}
+	for (Iterator it = units.iterator(); it.hasNext();) {
+	    Unit u = (Unit) it.next();
+	    int from = number(u);
+	    List next = graph.getSuccsOf(u);
+	    for (Iterator sIt = next.iterator(); sIt.hasNext();)
+		edge(succs, preds, from, number((Unit) sIt.next()));
+	    if (next.isEmpty() || canThrow((Stmt) u))
+		edge(succs, preds, from, exit);
+	}
+
+	idom = dominators(succs, preds, number((Unit) units.getFirst()));
+	ipdom = dominators(preds, succs, exit);
+    }
+
+    private int number(Unit u) {
+	return ((Integer) numbers.get(u)).intValue();
+    }
+
+    private static void edge(ArrayList[] succs, ArrayList[] preds, int from, int to) {
+	Integer t = new Integer(to);
+	if (succs[from].contains(t)) return;
+	succs[from].add(t);
+	preds[to].add(new Integer(from));
+    }
+
+    // whether statement s may throw an exception: anything except
+    // control flow, returns, and copying locals and constants
+    private static boolean canThrow(Stmt s) {
+	if (s instanceof IdentityStmt || s instanceof NopStmt ||
+	    s instanceof GotoStmt || s instanceof IfStmt ||
+	    s instanceof TableSwitchStmt || s instanceof LookupSwitchStmt ||
+	    s instanceof ReturnStmt || s instanceof ReturnVoidStmt)
+	    return false;
+	if (s instanceof AssignStmt) {
+	    Value left = ((AssignStmt) s).getLeftOp();
+	    Value right = ((AssignStmt) s).getRightOp();
+	    return !(left instanceof Local &&
+		     (right instanceof Local || right instanceof Constant));
+	}
+	return true;
+    }
+
+    // the immediate dominators of a graph from 'root', with the
+    // algorithm of Cooper, Harvey and Kennedy: iterate over the nodes
+    // in reverse postorder, intersecting the dominators of the
+    // processed predecessors, until nothing changes
+    private static int[] dominators(ArrayList[] succs, ArrayList[] preds, int root) {
+	int n = succs.length;
+
+	// the postorder, with an explicit stack
+	int[] order = new int[n];
+	int[] post = new int[n];
+	Arrays.fill(post, -1);
+	int count = 0;
+	boolean[] visited = new boolean[n];
+	int[] stack = new int[n];
+	int[] next_succ = new int[n];
+	int top = 0;
+	stack[top++] = root;
+	visited[root] = true;
+	while (top > 0) {
+	    int v = stack[top - 1];
+	    if (next_succ[v] < succs[v].size()) {
+		int w = ((Integer) succs[v].get(next_succ[v]++)).intValue();
+		if (!visited[w]) {
+		    visited[w] = true;
+		    stack[top++] = w;
+		}
+	    } else {
+		top--;
+		post[v] = count;
+		order[count++] = v;
+	    }
+	}
+
+	int[] dom = new int[n];
+	Arrays.fill(dom, -1);
+	dom[root] = root;
+	boolean changed = true;
+	while (changed) {
+	    changed = false;
+	    for (int k = count - 2; k >= 0; k--) {
+		int v = order[k];
+		int new_dom = -1;
+		for (Iterator it = preds[v].iterator(); it.hasNext();) {
+		    int p = ((Integer) it.next()).intValue();
+		    if (dom[p] == -1) continue;
+		    if (new_dom == -1) {
+			new_dom = p;
+			continue;
+		    }
+		    int a = p, b = new_dom;
+		    while (a != b) {
+			while (post[a] < post[b]) a = dom[a];
+			while (post[b] < post[a]) b = dom[b];
+		    }
+		    new_dom = a;
+		}
+		if (dom[v] != new_dom) {
+		    dom[v] = new_dom;
+		    changed = true;
+		}
+	    }
+	}
+	return dom;
+    }
+
+    // whether a dominates b in the tree given by 'dom'
+    private static boolean dominates(int[] dom, int a, int b) {
+	if (dom[b] == -1) return false;
+	while (true) {
+	    if (a == b) return true;
+	    if (dom[b] == b) return false;
+	    b = dom[b];
+	}
+    }
+
+    private boolean equivalent(int a, int b) {
+	return (dominates(idom, a, b) && dominates(ipdom, b, a)) ||
+	    (dominates(idom, b, a) && dominates(ipdom, a, b));
+    }
+
+    // ------------------------------------------------------------
+    // the probe points, in the order of the statements. the entry
+    // probe is at statement s; a call site probe is before the call
+    // statement s.
+    public void addEntry(Stmt s, int method_id) {
+	addPoint(s, ENTRY, method_id);
+    }
+
+    public void addSite(Stmt s, int site_id, boolean virtual) {
+	addPoint(s, virtual ? VIRTUAL : STATIC, site_id);
+    }
+
+    private void addPoint(Stmt s, int kind, int id) {
+	point_node.add(numbers.get(s));
+	point_kind.add(new Integer(kind));
+	point_id.add(new Integer(id));
+    }
+
+    private int node(int p) { return ((Integer) point_node.get(p)).intValue(); }
+    private int kind(int p) { return ((Integer) point_kind.get(p)).intValue(); }
+    private int id(int p) { return ((Integer) point_id.get(p)).intValue(); }
+
+    // group the points and choose the probes to keep. returns the
+    // implied coverage, as lines of file "implied":
+    //   "m <method id> <site id> ..."  the method is covered if one
+    //                                  of the sites is
+    //   "s <site id> <site id>"        the first site is covered if
+    //                                  the second one is
+    public List place() {
+	int num_points = point_node.size();
+	implier = new int[num_points];
+
+	// the groups of equivalent points: the first point of each
+	// group, and for each point its group
+	ArrayList firsts = new ArrayList();
+	int[] group = new int[num_points];
+	for (int p = 0; p < num_points; p++) {
+	    group[p] = -1;
+	    for (int g = 0; g < firsts.size() && group[p] == -1; g++)
+		if (equivalent(node(((Integer) firsts.get(g)).intValue()), node(p)))
+		    group[p] = g;
+	    if (group[p] == -1) {
+		group[p] = firsts.size();
+		firsts.add(new Integer(p));
+	    }
+	}
+
+	// the probe that each group keeps: the one of the highest
+	// kind, the first one for ties
+	int[] keeper = new int[firsts.size()];
+	Arrays.fill(keeper, -1);
+	for (int p = 0; p < num_points; p++) {
+	    int g = group[p];
+	    if (keeper[g] == -1 || kind(p) > kind(keeper[g])) keeper[g] = p;
+	}
+
+	ArrayList lines = new ArrayList();
+	for (int p = 0; p < num_points; p++) {
+	    int k = keeper[group[p]];
+	    implier[p] = (kind(p) == VIRTUAL) ? p : k;
+	    if (implier[p] != p && (onCycle(node(p)) || onCycle(node(k))))
+		implier[p] = p;
+	    if (implier[p] == p) continue;
+	    lines.add((kind(p) == ENTRY ? "m " : "s ") + id(p) + " " + id(k));
+	}
+
+	// the entry probe, if it is still kept, may be implied by
+	// several site probes together
+	HashMap kept_sites = new HashMap();
+	for (int p = num_points - 1; p >= 0; p--)
+	    if (kind(p) != ENTRY && implier[p] == p)
+		kept_sites.put(point_node.get(p), point_id.get(p));
+	for (int p = 0; p < num_points; p++) {
+	    if (kind(p) != ENTRY || implier[p] != p) continue;
+	    List sites = frontier(node(p), kept_sites);
+	    if (sites == null) continue;
+	    implier[p] = -1;
+	    StringBuffer line = new StringBuffer("m " + id(p));
+	    for (Iterator it = sites.iterator(); it.hasNext();)
+		line.append(' ').append(it.next());
+	    lines.add(line.toString());
+	}
+	return lines;
+    }
+
+    // the sites of the probes in 'kept_sites' (statement number ->
+    // site id) that every path from statement 'from' reaches before
+    // a statement that can throw or return. null if there is a path
+    // that doesn't, a loop on which no probe runs, or if one of the
+    // sites can be reached from one of them (so that a run from
+    // 'from' runs exactly one of the sites, once).
+    private List frontier(int from, HashMap kept_sites) {
+	LinkedHashSet result = new LinkedHashSet();
+	HashSet nodes = new HashSet();
+	int n = succs.length;
+	int[] state = new int[n];	// 0: new, 1: on the stack, 2: done
+	int[] stack = new int[n];
+	int[] next_succ = new int[n];
+	int top = 0;
+	stack[top++] = from;
+	state[from] = 1;
+	while (top > 0) {
+	    int v = stack[top - 1];
+	    Object site = kept_sites.get(new Integer(v));
+	    if (site != null) {
+		result.add(site);
+		nodes.add(new Integer(v));
+		state[v] = 2;
+		top--;
+	    } else if (v == exit) {
+		return null;
+	    } else if (next_succ[v] < succs[v].size()) {
+		int w = ((Integer) succs[v].get(next_succ[v]++)).intValue();
+		if (state[w] == 1) return null;
+		if (state[w] == 0) {
+		    state[w] = 1;
+		    stack[top++] = w;
+		}
+	    } else {
+		state[v] = 2;
+		top--;
+	    }
+	}
+	for (Iterator it = nodes.iterator(); it.hasNext();)
+	    if (reaches(((Integer) it.next()).intValue(), nodes)) return null;
+	return new ArrayList(result);
+    }
+
+    // whether one of the statements 'targets' can be reached from
+    // statement 'from' by at least one edge
+    private boolean reaches(int from, Set targets) {
+	boolean[] visited = new boolean[succs.length];
+	int[] stack = new int[succs.length];
+	int top = 0;
+	stack[top++] = from;
+	visited[from] = true;
+	while (top > 0) {
+	    int v = stack[--top];
+	    for (Iterator it = succs[v].iterator(); it.hasNext();) {
+		Integer w = (Integer) it.next();
+		if (targets.contains(w)) return true;
+		if (visited[w.intValue()]) continue;
+		visited[w.intValue()] = true;
+		stack[top++] = w.intValue();
+	    }
+	}
+	return false;
+    }
+
+    private boolean onCycle(int v) {
+	return reaches(v, Collections.singleton(new Integer(v)));
+    }
+
+    // whether the probe of the entry, or of the site with the given
+    // id, is kept. (only after place(); probes that are not probe
+    // points are kept.)
+    public boolean keepsEntry() {
+	return keeps(true, -1);
+    }
+
+    public boolean keepsSite(int site_id) {
+	return keeps(false, site_id);
+    }
+
+    private boolean keeps(boolean entry, int id) {
+	for (int p = 0; p < implier.length; p++)
+	    if ((kind(p) == ENTRY) == entry && (entry || id(p) == id))
+		return implier[p] == p;
+	return true;
+    }
+}
@@ -1,6 +1,8 @@
 import java.io.*;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 // this class is used at run time tor gather information about methods
 // and call sites, and to compute the coverage statistics.
@@ -9,197 +11,1184 @@ public class RuntimeTracker {
 
     // directory where the output files should be written
     private static String out_dir;
-        
+
+    // how much the tracker reports, set with -Dtracker.log=...
+    //   off     - nothing is printed
+    //   summary - the start/end banners and the coverage totals
+    //             (the default)
+    //   full    - also every probe, as a line in file "trace" in the
+    //             output directory. the probes put the events into a
+    //             bounded ring buffer that a background thread drains
+    //             to the file, so they never wait on I/O; when the
+    //             buffer is full, events are dropped and counted.
+    static final int LOG_OFF = 0;
+    static final int LOG_SUMMARY = 1;
+    static final int LOG_FULL = 2;
+    private static int log_level =
+	logLevel(System.getProperty("tracker.log", "summary"));
+
+    // number of events the ring buffer holds in "full" mode, set
+    // with -Dtracker.log.buffer=N (rounded up to a power of two)
+    private static int log_buffer =
+	Integer.getInteger("tracker.log.buffer", 1 << 16).intValue();
+
+    // the event log in "full" mode, null otherwise
+    private static EventLog events;
+
+    // with -Dtracker.profile=true, the probes also count how often
+    // each method, each call site and each annotated edge (site and
+    // receiver class) runs, and end() writes them to file "profile",
+    // hottest first. the counters are striped (see Counters); the
+    // number of stripes can be set with -Dtracker.profile.stripes=N
+    // (rounded up to a power of 2, 4 by default). each stripe costs
+    // 8 bytes per method, per site (twice) and per annotated edge, so
+    // N stripes take 8 * N * (methods + 2 * sites + annotated edges)
+    // bytes: 32 bytes per entry with the default, and e.g. 256 bytes
+    // per entry with 32 stripes. more stripes only help when many
+    // threads run the same hot methods at once.
+    // the counts are only right for classes instrumented without
+    // -Dinstrument.guards=true: guarded probes only call the tracker
+    // the first time they run.
+    private static boolean profile = Boolean.getBoolean("tracker.profile");
+    private static int profile_stripes =
+	Integer.getInteger("tracker.profile.stripes", 4).intValue();
+
+    // coverage snapshots, for programs that run for a long time: each
+    // snapshot appends to file "snapshots" in the output directory
+    // what was covered since the previous one (see snapshot()). a
+    // background thread takes them every N seconds with
+    // -Dtracker.snapshot.interval=N, and, with
+    // -Dtracker.snapshot.trigger=true, whenever file
+    // "snapshot.request" appears in the output directory (the file is
+    // deleted). the program can also call snapshot() itself. the
+    // snapshots only read the sets that the probes write, so the
+    // application threads never wait for them.
+    private static int snapshot_interval =
+	Integer.getInteger("tracker.snapshot.interval", 0).intValue();
+    private static boolean snapshot_trigger = Boolean.getBoolean("tracker.snapshot.trigger");
+
+    // the coverage at the last snapshot (methods, edges and annotated
+    // edges, see covered()), the number of snapshots so far, and the
+    // time of start()
+    private static BitSet[] snapshot_covered;
+    private static int snapshots;
+    private static long start_millis;
+
+    // set by the first call of end() after start(); later calls
+    // (e.g. from the shutdown hook) do nothing
+    private static boolean ended = false;
+
+    // the snapshot thread and the shutdown hook, once started
+    private static Thread snapshotter;
+    private static Thread shutdown_hook;
+
+    // the counters of the profiling mode, null otherwise: for each
+    // method, for each site, for each annotated edge, and for each
+    // site the receivers of classes that CHA didn't predict
+    private static Counters method_counts;
+    private static Counters site_counts;
+    private static Counters annotated_counts;
+    private static Counters unexpected_counts;
+
+    // all tables below are built once in 'start'. the probes only
+    // index into them with the integer ids that the instrumentation
+    // passes in, so recording coverage never allocates. the *_hits
+    // sets are written by all application threads at once; they are
+    // assigned last in 'start' (and are volatile), which publishes
+    // the other tables to the threads that read them.
+
+    // method names, indexed by the method id from "rmethods"
+    private static String[] method_names;
+    private static volatile Bits method_hits;
+    private static int StartMethods;
+
+    // "y_x" call site ids, indexed by the dense site id from "sites"
+    private static String[] site_names;
+    private static volatile Bits site_hits;
+
+    // maps "y_x" to the dense site id; only used by the old
+    // String-based probes. when the tables come from the binary
+    // file, it is built on the first such probe (see siteIds).
+    private static volatile HashMap<String, Integer> site_ids;
+
+    // call edges from "edges": the site and the target method id
+    private static int[] edge_site;
+    private static int[] edge_target;
     private static int StartEdges;
+
+    // call edges from "edges.annotated": the site, the target method
+    // id and the receiver class (null for static/special sites).
+    // annotated_edge is the index of the corresponding plain edge,
+    // or -1 if the target is a library method.
+    private static int[] annotated_site;
+    private static int[] annotated_target;
+    private static String[] annotated_class;
+    private static int[] annotated_edge;
+    private static Bits annotated_hits;
     private static int StartEdgesAnnotated;
-    private static int StartMethods;
-    private static TreeMap<String, Integer> edges_annotated;
-    private static TreeMap<String, Integer> nedges;
-    private static TreeMap<String, Integer> nedges_annotated;
-    private static TreeMap<Integer, String> nmethods;
+
+    // for each site, the indices of its annotated edges
+    private static int[][] site_entries;
+
+    // with minimal probes (see ProbePlacement), the coverage of the
+    // probes that were left out, from file "implied": the method (if
+    // implied_method[i]) or site implied_id[i] is covered if one of
+    // the sites implied_by[i] is. applied in end().
+    private static boolean[] implied_method = new boolean[0];
+    private static int[] implied_id = new int[0];
+    private static int[][] implied_by = new int[0][];
+
+    // for each virtual/interface site, an inline cache from the
+    // receiver classes seen so far to their annotated edges (see
+    // ReceiverCache). null until the site is first executed.
+    private static ReceiverCache[] site_caches;
 
     // --------------------------------------------------------
     // before anything else in RuntimeTracker is called, method
     // 'start' should be invoked. The parameter is a directory in
     // which RuntimeTracker will find the necessary CHA-generated
-    // files ("rmethods.cut" and "edges.cut"). In the same directory,
-    // RuntimeTracker will write info about coverage statistics.
+    // files ("rmethods", "sites", "edges" and "edges.annotated", or
+    // their binary form "cha.bin"; see ChaBinary). In the same
+    // directory, RuntimeTracker will write info about coverage
+    // statistics. A shutdown hook calls 'end' if the program exits
+    // without calling it.
     public static void start(String io_dir)
-    { 
+    {
+
+		if (log_level >= LOG_SUMMARY)
+			System.out.println("\n--- Instrumentation started in " +
+					   io_dir + " ---\n");
 
-		System.out.println("\n--- Instrumentation started in " + 
-				   io_dir + " ---\n");
-	
 		out_dir = io_dir;
-		nedges = new TreeMap<String, Integer>();
-		edges_annotated = new TreeMap<String, Integer>();
-		nedges_annotated = new TreeMap<String, Integer>();
-		nmethods = new TreeMap<Integer, String>();
-		
+
+		// the binary file already has the tables in the form used
+		// here, so it is read instead of the text files if it exists
+		File binary = new File(io_dir + "/" + ChaBinary.FILE_NAME);
+		boolean loaded = false;
+		if (binary.exists())
+		{
+			try
+			{
+				loadBinary(binary.getPath());
+				loaded = true;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		if (!loaded) loadText(io_dir);
+		loadImplied(io_dir + "/implied");
+
+		StartMethods = 0;
+		for (int i = 0; i < method_names.length; i++)
+			if (method_names[i] != null) StartMethods++;
+
+		StartEdges = edge_site.length;
+		StartEdgesAnnotated = annotated_site.length;
+
+		int[] per_site = new int[site_names.length];
+		for (int i = 0; i < StartEdgesAnnotated; i++)
+			per_site[annotated_site[i]]++;
+		site_entries = new int[site_names.length][];
+		for (int i = 0; i < site_names.length; i++)
+			site_entries[i] = new int[per_site[i]];
+		Arrays.fill(per_site, 0);
+		for (int i = 0; i < StartEdgesAnnotated; i++)
+		{
+			int site = annotated_site[i];
+			site_entries[site][per_site[site]++] = i;
+		}
+
+		if (log_level == LOG_FULL)
+		{
+			try
+			{
+				events = new EventLog(out_dir + "/trace", log_buffer);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		if (profile)
+		{
+			method_counts = new Counters(method_names.length, profile_stripes);
+			site_counts = new Counters(site_names.length, profile_stripes);
+			annotated_counts = new Counters(StartEdgesAnnotated, profile_stripes);
+			unexpected_counts = new Counters(site_names.length, profile_stripes);
+		}
+
+		site_caches = new ReceiverCache[site_names.length];
+		annotated_hits = new Bits(StartEdgesAnnotated);
+		site_hits = new Bits(site_names.length);
+		method_hits = new Bits(method_names.length);
+
+		synchronized (RuntimeTracker.class)
+		{
+			ended = false;
+			snapshot_covered = null;
+			snapshots = 0;
+			start_millis = System.currentTimeMillis();
+			new File(out_dir + "/snapshots").delete();
+
+			if (snapshotter == null && (snapshot_interval > 0 || snapshot_trigger))
+			{
+				snapshotter = new Thread("RuntimeTracker snapshots")
+				{
+					public void run() { takeSnapshots(); }
+				};
+				snapshotter.setDaemon(true);
+				snapshotter.start();
+			}
+			if (shutdown_hook == null)
+			{
+				shutdown_hook = new Thread("RuntimeTracker end")
+				{
+					public void run() { end(); }
+				};
+				Runtime.getRuntime().addShutdownHook(shutdown_hook);
+			}
+		}
+    }
+
+    // read the tables from file "cha.bin"
+    private static void loadBinary(String file_name) throws IOException
+    {
+		ChaBinary bin = ChaBinary.read(file_name);
+
+		int num_methods = 0;
+		for (int i = 0; i < bin.method_id.length; i++)
+			num_methods = Math.max(num_methods, bin.method_id[i] + 1);
+		method_names = new String[num_methods];
+		for (int i = 0; i < bin.method_id.length; i++)
+			method_names[bin.method_id[i]] = bin.method_name[i];
+
+		// the binary file lists every site that its edges use
+		int num_sites = 0;
+		for (int i = 0; i < bin.site_id.length; i++)
+			num_sites = Math.max(num_sites, bin.site_id[i] + 1);
+		site_names = new String[num_sites];
+		for (int i = 0; i < bin.site_id.length; i++)
+			site_names[bin.site_id[i]] = bin.siteName(i);
+
+		edge_site = bin.edge_site;
+		edge_target = bin.edge_target;
+
+		annotated_site = bin.annotated_site;
+		annotated_target = bin.annotated_target;
+		annotated_class = bin.annotated_class;
+		annotated_edge = bin.annotated_edge;
+    }
+
+    // read the tables from the text files
+    private static void loadText(String io_dir)
+    {
+		ArrayList<String> methods = new ArrayList<String>();
+		ArrayList<String> sites = new ArrayList<String>();
+		HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+		// edges and annotated edges, keyed by their line in the
+		// input file (duplicate lines are counted once)
+		LinkedHashMap<String, Integer> edges = new LinkedHashMap<String, Integer>();
+		LinkedHashMap<String, Integer> annotated = new LinkedHashMap<String, Integer>();
+		ArrayList<int[]> edge_info = new ArrayList<int[]>();
+		ArrayList<int[]> annotated_info = new ArrayList<int[]>();
+		ArrayList<String> classes = new ArrayList<String>();
+
 		try
 		{
 			//Get all rmethods
-			DataInputStream stream = new DataInputStream(new FileInputStream(io_dir + "/rmethods"));
-			BufferedReader file = new BufferedReader(new InputStreamReader(stream));
-			
+			BufferedReader file = new BufferedReader(new FileReader(io_dir + "/rmethods"));
+
 			String line;
 			while ((line = file.readLine()) != null)
 			{
 				  int divide = line.indexOf(":");
 				  int Method_ID = Integer.parseInt(line.substring(0, divide));
-				  String Method = line.substring(divide+1);
-				  
-				  nmethods.put(Method_ID, Method);
+				  String Method = line.substring(divide+2);
+
+				  while (methods.size() <= Method_ID) methods.add(null);
+				  methods.set(Method_ID, Method);
 			}
-			
-			stream.close();
-			
+
+			file.close();
+
+			//Get the dense site ids
+			file = new BufferedReader(new FileReader(io_dir + "/sites"));
+
+			while ((line = file.readLine()) != null)
+			{
+				  // "id: y_x,R,T"; the counts are only used
+				  // by Instrumenter
+				  int divide = line.indexOf(":");
+				  int Site_ID = Integer.parseInt(line.substring(0, divide));
+				  String Site = line.substring(divide+2);
+				  int comma = Site.indexOf(',');
+				  if (comma != -1) Site = Site.substring(0, comma);
+
+				  while (sites.size() <= Site_ID) sites.add(null);
+				  sites.set(Site_ID, Site);
+				  ids.put(Site, Site_ID);
+			}
+
+			file.close();
+
 			//Get all edges
-			stream = new DataInputStream(new FileInputStream(io_dir + "/edges"));		
-			file = new BufferedReader(new InputStreamReader(stream));
-			
+			file = new BufferedReader(new FileReader(io_dir + "/edges"));
+
 			while ((line = file.readLine()) != null)
 			{
+				  if (edges.containsKey(line)) continue;
+
 				  int divide = line.indexOf(",");
-				  //String Call_Site_ID = line.substring(0, divide);
+				  int Site_ID = siteId(line.substring(0, divide), sites, ids);
 				  int Method_ID = Integer.parseInt(line.substring(divide+1));
-				  
-				  nedges.put(line, Method_ID);
+
+				  edges.put(line, edge_info.size());
+				  edge_info.add(new int[] { Site_ID, Method_ID });
 			}
-			
-			stream.close();
-			
-			stream = new DataInputStream(new FileInputStream(io_dir + "/edges.annotated"));		
-			file = new BufferedReader(new InputStreamReader(stream));
-			
+
+			file.close();
+
+			file = new BufferedReader(new FileReader(io_dir + "/edges.annotated"));
+
 			while ((line = file.readLine()) != null)
 			{
+				  if (annotated.containsKey(line)) continue;
+
 				  int divide1 = line.indexOf(",");
 				  int divide2 = line.lastIndexOf(",");
+				  String Site = line.substring(0, divide1);
 				  int Method_ID = 0;
-	
+				  String Class = null;
+
 				  if(divide1 != divide2)
 				  {
 					  Method_ID = Integer.parseInt(line.substring(divide1+1,divide2));
-					  edges_annotated.put(line.substring(0,divide1) + "," + line.substring(divide2+1), Method_ID);
+					  Class = line.substring(divide2+1);
 				  }
 				  else
 				  {
 					  Method_ID = Integer.parseInt(line.substring(divide1+1));
-					  edges_annotated.put(line.substring(0,divide1), Method_ID);
 				  }
-				  
-				  nedges_annotated.put(line, Method_ID);
+
+				  Integer edge = edges.get(Site + "," + Method_ID);
+
+				  annotated.put(line, annotated_info.size());
+				  annotated_info.add(new int[] { siteId(Site, sites, ids), Method_ID,
+							(edge == null) ? -1 : edge.intValue() });
+				  classes.add(Class);
 			}
-			
-			stream.close();
-		} 
+
+			file.close();
+		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
-		
-		StartEdges = nedges.size();
-		StartEdgesAnnotated = nedges_annotated.size();
-		StartMethods = nmethods.size();
-		
+
+		// turn the lists into the arrays used by the probes
+		method_names = methods.toArray(new String[methods.size()]);
+		site_names = sites.toArray(new String[sites.size()]);
+		site_ids = ids;
+
+		edge_site = new int[edge_info.size()];
+		edge_target = new int[edge_info.size()];
+		for (int i = 0; i < edge_info.size(); i++)
+		{
+			edge_site[i] = edge_info.get(i)[0];
+			edge_target[i] = edge_info.get(i)[1];
+		}
+
+		int num_annotated = annotated_info.size();
+		annotated_site = new int[num_annotated];
+		annotated_target = new int[num_annotated];
+		annotated_edge = new int[num_annotated];
+		annotated_class = classes.toArray(new String[num_annotated]);
+		for (int i = 0; i < num_annotated; i++)
+		{
+			int[] info = annotated_info.get(i);
+			annotated_site[i] = info[0];
+			annotated_target[i] = info[1];
+			annotated_edge[i] = info[2];
+		}
     }
-    
+
+    // read file "implied", if the classes were instrumented with
+    // minimal probes. each line is "m <method> <site> ..." or
+    // "s <site> <site>".
+    private static void loadImplied(String file_name)
+    {
+		if (!new File(file_name).exists()) return;
+
+		ArrayList<String[]> lines = new ArrayList<String[]>();
+		try
+		{
+			BufferedReader file = new BufferedReader(new FileReader(file_name));
+			String line;
+			while ((line = file.readLine()) != null)
+				if (line.length() != 0) lines.add(line.split(" "));
+			file.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		implied_method = new boolean[lines.size()];
+		implied_id = new int[lines.size()];
+		implied_by = new int[lines.size()][];
+		for (int i = 0; i < lines.size(); i++)
+		{
+			String[] words = lines.get(i);
+			implied_method[i] = words[0].equals("m");
+			implied_id[i] = Integer.parseInt(words[1]);
+			implied_by[i] = new int[words.length - 2];
+			for (int k = 2; k < words.length; k++)
+				implied_by[i][k - 2] = Integer.parseInt(words[k]);
+		}
+    }
+
+    // record the coverage implied by the probes that ran. in the
+    // profiling mode, an implied method or site gets the sum of the
+    // counts of the sites that imply it: ProbePlacement only leaves
+    // out a probe if each of its runs goes with exactly one run of one
+    // of these sites (a single site that is not on a loop, or sites
+    // of which each run of the method runs exactly one, once).
+    private static void applyImplied()
+    {
+		for (int i = 0; i < implied_id.length; i++)
+		{
+			boolean covered = false;
+			long count = 0;
+			for (int k = 0; k < implied_by[i].length; k++)
+			{
+				int site = implied_by[i][k];
+				if (site_hits.get(site)) covered = true;
+				if (profile) count += site_counts.get(site);
+			}
+			if (!covered) continue;
+
+			Bits hits = implied_method[i] ? method_hits : site_hits;
+			hits.set(implied_id[i]);
+			if (profile)
+				(implied_method[i] ? method_counts : site_counts).add(implied_id[i], count);
+		}
+    }
+
+    private static int logLevel(String level)
+    {
+		if (level.equals("off")) return LOG_OFF;
+		if (level.equals("full")) return LOG_FULL;
+		return LOG_SUMMARY;
+    }
+
+    // returns the dense id of a "y_x" call site id. sites that are
+    // not listed in file "sites" get the next free id.
+    private static int siteId(String site, ArrayList<String> sites,
+			      HashMap<String, Integer> ids)
+    {
+		Integer id = ids.get(site);
+		if (id != null) return id.intValue();
+
+		ids.put(site, sites.size());
+		sites.add(site);
+		return sites.size() - 1;
+    }
+
     // ---------------------------------------------------------
     // this method should be invoked at the end of the execution;
-    // basically, it writes the output files to disk
-    public static void end()
+    // basically, it writes the output files to disk. only the first
+    // call does anything.
+    public static synchronized void end()
     {
-    	System.out.println("\n--- Instrumentation ended ---\n");
+		if (ended || method_hits == null) return;
+		if (snapshot_covered != null) snapshot();
+		ended = true;
+
+    	if (log_level >= LOG_SUMMARY)
+    		System.out.println("\n--- Instrumentation ended ---\n");
+
+		// flush the remaining events to the trace file
+		if (events != null)
+		{
+			events.close();
+			events = null;
+		}
+
+		applyImplied();
 
 		BufferedWriter nc_methods;
-		
+
 		// output file for not-covered edges
 		BufferedWriter nc_edges;
-		BufferedWriter nc_edges_annotated; 
-	
+		BufferedWriter nc_edges_annotated;
+
+		BitSet[] covered = covered();
+		BitSet covered_edges = covered[1];
+		BitSet covered_annotated = covered[2];
+
+		// the output files list the not-covered edges in sorted order
+		ArrayList<String> left_edges = new ArrayList<String>();
+		for (int i = 0; i < StartEdges; i++)
+			if (!covered_edges.get(i))
+				left_edges.add(site_names[edge_site[i]] + "," + edge_target[i]);
+		Collections.sort(left_edges);
+
+		ArrayList<String> left_annotated = new ArrayList<String>();
+		for (int i = 0; i < StartEdgesAnnotated; i++)
+			if (!covered_annotated.get(i))
+				left_annotated.add(annotatedLine(i));
+		Collections.sort(left_annotated);
+
 		try
 		{
-		    nc_methods = 
+		    nc_methods =
 		    	new BufferedWriter(new FileWriter(out_dir + "/nmethods"));
 		    nc_edges =
 		    	new BufferedWriter(new FileWriter(out_dir + "/nedges"));
 		    nc_edges_annotated =
 				new BufferedWriter(new FileWriter(out_dir + "/nedges.annotated"));
-		    
-		    for(Entry<Integer, String> iter : nmethods.entrySet())
+
+		    int left_methods = 0;
+		    for (int i = 0; i < method_names.length; i++)
 		    {
-		    	 nc_methods.write(iter.getKey() + ":" + iter.getValue());
+		    	 if (method_names[i] == null || method_hits.get(i)) continue;
+		    	 nc_methods.write(i + ": " + method_names[i]);
 		    	 nc_methods.newLine();
+		    	 left_methods++;
 		    }
-		    
-		    nc_methods.write("Not covered: " + nmethods.size() + " out of " + StartMethods  + " [" + ((nmethods.size() * 100) / StartMethods) + "%]");
-		    
-		    for(Entry<String, Integer> iter : nedges.entrySet())
+
+		    nc_methods.write(notCovered(left_methods, StartMethods));
+		    if (log_level >= LOG_SUMMARY)
+		    	System.out.println("Methods " + notCovered(left_methods, StartMethods));
+
+		    for (String edge : left_edges)
 		    {
-		    	 nc_edges.write(iter.getKey());
+		    	 nc_edges.write(edge);
 		    	 nc_edges.newLine();
 		    }
-		    
-		    nc_edges.write("Not covered: " + nedges.size() + " out of " + StartEdges + " [" + ((nedges.size() * 100) / StartEdges) + "%]");
 
-		    
-		    for(Entry<String, Integer> iter : nedges_annotated.entrySet())
+		    nc_edges.write(notCovered(left_edges.size(), StartEdges));
+		    if (log_level >= LOG_SUMMARY)
+		    	System.out.println("Edges " + notCovered(left_edges.size(), StartEdges));
+
+
+		    for (String edge : left_annotated)
 		    {
-		    	 nc_edges_annotated.write(iter.getKey());
+		    	 nc_edges_annotated.write(edge);
 		    	 nc_edges_annotated.newLine();
 		    }
-		    
-		    nc_edges_annotated.write("Not covered: " + nedges_annotated.size() + " out of " + StartEdgesAnnotated + " [" + ((nedges_annotated.size() * 100) / StartEdgesAnnotated) + "%]");
-		    
+
+		    nc_edges_annotated.write(notCovered(left_annotated.size(), StartEdgesAnnotated));
+		    if (log_level >= LOG_SUMMARY)
+		    	System.out.println("Annotated edges " +
+		    			   notCovered(left_annotated.size(), StartEdgesAnnotated));
+
 		    // close the files
 		    nc_methods.close();
 		    nc_edges.close();
 		    nc_edges_annotated.close();
-	
+
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
-	
+
+		if (profile) writeProfile();
+    }
+
+    // the methods, edges and annotated edges covered so far, with the
+    // coverage implied by left-out probes. an annotated edge is
+    // covered if the probe saw its receiver class, or if its site was
+    // executed and the site has only this one edge (static/special
+    // sites, and the virtual sites that CHA found monomorphic, whose
+    // probes don't pass the receiver). a plain edge is covered if any
+    // of its annotated edges is.
+    private static BitSet[] covered()
+    {
+		BitSet methods = new BitSet(method_names.length);
+		for (int i = 0; i < method_names.length; i++)
+			if (method_hits.get(i)) methods.set(i);
+		BitSet sites = new BitSet(site_names.length);
+		for (int i = 0; i < site_names.length; i++)
+			if (site_hits.get(i)) sites.set(i);
+
+		for (int i = 0; i < implied_id.length; i++)
+			for (int k = 0; k < implied_by[i].length; k++)
+				if (sites.get(implied_by[i][k]))
+					(implied_method[i] ? methods : sites).set(implied_id[i]);
+
+		BitSet annotated = new BitSet(StartEdgesAnnotated);
+		BitSet edges = new BitSet(StartEdges);
+		for (int i = 0; i < StartEdgesAnnotated; i++)
+		{
+			int site = annotated_site[i];
+			if (annotated_hits.get(i) ||
+			    (sites.get(site) && site_entries[site].length == 1))
+			{
+				annotated.set(i);
+				if (annotated_edge[i] != -1)
+					edges.set(annotated_edge[i]);
+			}
+		}
+		return new BitSet[] { methods, edges, annotated };
+    }
+
+    // ---------------------------------------------------------
+    // append to file "snapshots" what was covered since the last
+    // snapshot (or since start()):
+    //
+    //   ===== Snapshot <n> at <ms since start> ms
+    //   Methods +<new> (covered <c> out of <total>)
+    //   <the new methods, as in "rmethods">
+    //   Edges +<new> (...)
+    //   <the new edges, as in "edges">
+    //   Annotated edges +<new> (...)
+    //   <the new annotated edges, as in "edges.annotated">
+    //
+    // end() takes a last snapshot if there was one before. does
+    // nothing before start() and after end().
+    public static synchronized void snapshot()
+    {
+		if (ended || method_hits == null) return;
+
+		BitSet[] covered = covered();
+		BitSet[] fresh = new BitSet[3];
+		for (int k = 0; k < 3; k++)
+		{
+			fresh[k] = (BitSet) covered[k].clone();
+			if (snapshot_covered != null) fresh[k].andNot(snapshot_covered[k]);
+		}
+		snapshot_covered = covered;
+		snapshots++;
+
+		try
+		{
+			BufferedWriter out = new BufferedWriter
+				(new FileWriter(out_dir + "/snapshots", true));
+			out.write("===== Snapshot " + snapshots + " at " +
+				  (System.currentTimeMillis() - start_millis) + " ms\n");
+
+			out.write("Methods +" + fresh[0].cardinality() + " (covered " +
+				  covered[0].cardinality() + " out of " + StartMethods + ")\n");
+			for (int i = fresh[0].nextSetBit(0); i >= 0; i = fresh[0].nextSetBit(i + 1))
+				if (method_names[i] != null)
+					out.write(i + ": " + method_names[i] + "\n");
+
+			out.write("Edges +" + fresh[1].cardinality() + " (covered " +
+				  covered[1].cardinality() + " out of " + StartEdges + ")\n");
+			for (int i = fresh[1].nextSetBit(0); i >= 0; i = fresh[1].nextSetBit(i + 1))
+				out.write(site_names[edge_site[i]] + "," + edge_target[i] + "\n");
+
+			out.write("Annotated edges +" + fresh[2].cardinality() + " (covered " +
+				  covered[2].cardinality() + " out of " + StartEdgesAnnotated + ")\n");
+			for (int i = fresh[2].nextSetBit(0); i >= 0; i = fresh[2].nextSetBit(i + 1))
+				out.write(annotatedLine(i) + "\n");
+
+			out.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+    }
+
+    // the loop of the snapshot thread: a snapshot every
+    // snapshot_interval seconds, and one for each request file. the
+    // request file is looked for once a second.
+    private static void takeSnapshots()
+    {
+		long next = System.currentTimeMillis() + 1000L * snapshot_interval;
+		while (true)
+		{
+			try
+			{
+				Thread.sleep(1000);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+
+			File request = new File(out_dir + "/snapshot.request");
+			boolean requested = snapshot_trigger && request.exists();
+			if (requested) request.delete();
+			long now = System.currentTimeMillis();
+			boolean due = snapshot_interval > 0 && now >= next;
+			if (due) next = now + 1000L * snapshot_interval;
+			if (requested || due) snapshot();
+		}
+    }
+
+    // write file "profile": the execution counts of the methods, of
+    // the edges and of the annotated edges, each sorted by count
+    // (highest first) and leaving out what never ran. an annotated
+    // edge of a site with only one edge counts every execution of
+    // the site, as for coverage. receivers whose class CHA didn't
+    // predict are counted per site, as "<site>,?".
+    private static void writeProfile()
+    {
+		long[] annotated = new long[StartEdgesAnnotated];
+		long[] edges = new long[StartEdges];
+		for (int i = 0; i < StartEdgesAnnotated; i++)
+		{
+			int site = annotated_site[i];
+			annotated[i] = annotated_counts.get(i);
+			if (annotated[i] == 0 && site_entries[site].length == 1)
+				annotated[i] = site_counts.get(site);
+			if (annotated_edge[i] != -1)
+				edges[annotated_edge[i]] += annotated[i];
+		}
+
+		ArrayList<Hot> hot_methods = new ArrayList<Hot>();
+		for (int i = 0; i < method_names.length; i++)
+			if (method_names[i] != null)
+				Hot.add(hot_methods, method_counts.get(i), i + ": " + method_names[i]);
+
+		ArrayList<Hot> hot_edges = new ArrayList<Hot>();
+		for (int i = 0; i < StartEdges; i++)
+			Hot.add(hot_edges, edges[i], site_names[edge_site[i]] + "," + edge_target[i]);
+
+		ArrayList<Hot> hot_annotated = new ArrayList<Hot>();
+		for (int i = 0; i < StartEdgesAnnotated; i++)
+			Hot.add(hot_annotated, annotated[i], annotatedLine(i));
+		for (int i = 0; i < site_names.length; i++)
+			Hot.add(hot_annotated, unexpected_counts.get(i), site_names[i] + ",?");
+
+		try
+		{
+			BufferedWriter out = new BufferedWriter(new FileWriter(out_dir + "/profile"));
+			Hot.write(out, "Methods", hot_methods);
+			Hot.write(out, "Edges", hot_edges);
+			Hot.write(out, "Annotated edges", hot_annotated);
+			out.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+    }
+
+    // a line of the profile and its count
+    private static final class Hot implements Comparable<Hot>
+    {
+		final long count;
+		final String line;
+
+		Hot(long count, String line)
+		{
+			this.count = count;
+			this.line = line;
+		}
+
+		public int compareTo(Hot other)
+		{
+			if (count != other.count) return (count > other.count) ? -1 : 1;
+			return line.compareTo(other.line);
+		}
+
+		static void add(ArrayList<Hot> list, long count, String line)
+		{
+			if (count != 0) list.add(new Hot(count, line));
+		}
+
+		static void write(BufferedWriter out, String title, ArrayList<Hot> list)
+			throws IOException
+		{
+			Collections.sort(list);
+			out.write("===== " + title + " (" + list.size() + ")");
+			out.newLine();
+			for (Hot h : list)
+			{
+				out.write(h.count + " " + h.line);
+				out.newLine();
+			}
+		}
     }
-    
+
+    // the line of annotated edge i, as it appeared in "edges.annotated"
+    private static String annotatedLine(int i)
+    {
+		String line = site_names[annotated_site[i]] + "," + annotated_target[i];
+		if (annotated_class[i] != null) line += "," + annotated_class[i];
+		return line;
+    }
+
+    // the summary line at the end of each output file
+    private static String notCovered(int left, int total)
+    {
+		int percent = (total == 0) ? 0 : (left * 100) / total;
+		return "Not covered: " + left + " out of " + total + " [" + percent + "%]";
+    }
+
     // --------------------------------------------------------------
     // if this method is called, it means that the corresponding call
     // site is executed. this should happen only for call sites that
-    // are staticinvoke or specialinvoke. 
+    // are staticinvoke or specialinvoke, or virtual/interfaceinvoke
+    // sites with a single receiver class and target (see
+    // MyTransformer). The parameter is the dense site id assigned by
+    // ChaAnalysis (see file "sites").
+
+    // For virtual/interfaceinvoke, the second version of the method
+    // takes as a parameter the receiver object at the call site, and
+    // records the annotated edge that matches the receiver class.
+
+    public static void beforeCall(int site_id)
+    {
+    	Bits hits = site_hits;
+    	if (hits == null) return;
+
+    	hits.set(site_id);
+    	if (profile) site_counts.increment(site_id);
+
+    	EventLog log = events;
+    	if (log != null) log.add(EventLog.CALL, site_id, 0);
+    }
+
+    public static void beforeCall(int site_id, Object receiver)
+    {
+    	Bits hits = site_hits;
+    	if (hits == null) return;
+
+    	hits.set(site_id);
+
+    	// most sites only ever see one receiver class, so check the
+    	// first cached class before anything else
+    	Class<?> cls = receiver.getClass();
+    	ReceiverCache cache = site_caches[site_id];
+    	int entry;
+    	if (cache != null && cache.first == cls)
+    		entry = cache.first_entry;
+    	else
+    		entry = receiverEntry(site_id, cls, cache);
+
+    	if (entry != -1) annotated_hits.set(entry);
 
-    // For virtual/interfaceinvoke, there should be another version of
-    // the method that takes as a second parameter the receiver object
-    // at the call site. The class of the receiver can be obtained at
-    // run time using x.getClass().getName().
+    	if (profile)
+    	{
+    		site_counts.increment(site_id);
+    		if (entry != -1)
+    			annotated_counts.increment(entry);
+    		else
+    			unexpected_counts.increment(site_id);
+    	}
 
+    	EventLog log = events;
+    	if (log != null) log.add(EventLog.RECEIVER_CALL, site_id, entry + 1);
+    }
+
+    // the slow path of beforeCall(int,Object): look further in the
+    // site's cache, and on a miss find the annotated edge by the
+    // name of the receiver class and add it to the cache. returns -1
+    // if the receiver class is not one that CHA predicted.
+    private static int receiverEntry(int site_id, Class<?> cls, ReceiverCache cache)
+    {
+    	if (cache != null && cache != ReceiverCache.MEGAMORPHIC)
+    	{
+    		for (int i = 1; i < cache.classes.length; i++)
+    			if (cache.classes[i] == cls) return cache.entries[i];
+    	}
+
+    	String name = cls.getName();
+    	int entry = -1;
+    	int[] entries = site_entries[site_id];
+    	for (int i = 0; i < entries.length; i++)
+    	{
+    		if (name.equals(annotated_class[entries[i]]))
+    		{
+    			entry = entries[i];
+    			break;
+    		}
+    	}
+
+    	// a racing thread may replace the cache at the same time;
+    	// then one of the two additions is lost and simply happens
+    	// again on a later call
+    	if (cache == null)
+    		site_caches[site_id] = new ReceiverCache(cls, entry);
+    	else if (cache != ReceiverCache.MEGAMORPHIC)
+    		site_caches[site_id] = cache.add(cls, entry);
+
+    	return entry;
+    }
+
+    // the old probes, which take the "y_x" call site id. they are
+    // kept for classes that were instrumented before the dense site
+    // ids existed.
     public static void beforeCall(String call_site_id)
-    { 
-    	System.out.println("Call site: " + call_site_id);
-    	Entry<String, Integer> Method = edges_annotated.floorEntry(call_site_id);
-    	
-    	nedges.remove((String)(call_site_id + "," + Method.getValue()));
-    	nedges_annotated.remove((String)(call_site_id + "," + Method.getValue()));
-    }
-    
+    {
+    	Integer site = siteIds().get(call_site_id);
+    	if (site != null) beforeCall(site.intValue());
+    }
+
     public static void beforeCall(String call_site_id, Object Class)
-    { 
-    	System.out.println("Call site: " + call_site_id + "," + Class.getClass().getName());
-    	Entry<String, Integer> Method = edges_annotated.floorEntry(call_site_id + "," + Class.getClass().getName());
-    	
-    	nedges.remove((String)(call_site_id + "," + Method.getValue()));
-    	nedges_annotated.remove((String)(call_site_id + "," + Method.getValue() + "," + Class.getClass()));
+    {
+    	Integer site = siteIds().get(call_site_id);
+    	if (site != null) beforeCall(site.intValue(), Class);
+    }
+
+    private static HashMap<String, Integer> siteIds()
+    {
+    	HashMap<String, Integer> ids = site_ids;
+    	if (ids != null) return ids;
+
+    	synchronized (RuntimeTracker.class)
+    	{
+    		if (site_ids == null)
+    		{
+    			ids = new HashMap<String, Integer>();
+    			for (int i = 0; i < site_names.length; i++)
+    				if (site_names[i] != null) ids.put(site_names[i], i);
+    			site_ids = ids;
+    		}
+    		return site_ids;
+    	}
     }
 
 
     // ---------------------------------------------------------
     // ok, this means that the excution just entered some method
     public static void methodEntry(int method_id)
-    { 
-    	System.out.println("Method: " + method_id);
-		nmethods.remove(method_id);
+    {
+    	Bits hits = method_hits;
+    	if (hits == null) return;
+
+		hits.set(method_id);
+    	if (profile) method_counts.increment(method_id);
+
+    	EventLog log = events;
+    	if (log != null) log.add(EventLog.METHOD, method_id, 0);
+    }
+
+    // ---------------------------------------------------------------
+    // a fixed-size bit set that many threads can update at once
+    // without locking. a bit is only ever set, never cleared, so
+    // 'set' first reads the word and skips the CAS when the bit is
+    // already there; once a site is covered, its probe is just a
+    // load and a test, and hot sites don't fight over cache lines.
+    static final class Bits {
+	private final AtomicLongArray words;
+
+	Bits(int size) {
+	    words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+	void set(int i) {
+	    int idx = i >>> 6;
+	    long mask = 1L << i;
+	    long w = words.get(idx);
+	    while ((w & mask) == 0) {
+		if (words.compareAndSet(idx, w, w | mask)) return;
+		w = words.get(idx);
+	    }
+	}
+
+	boolean get(int i) {
+	    return (words.get(i >>> 6) & (1L << i)) != 0;
+	}
+    }
+
+    // ---------------------------------------------------------------
+    // counters for the profiling mode, which many threads increment
+    // at once. each counter has one slot per stripe, and a thread
+    // always increments the slot of the stripe picked by its id, so
+    // threads on different stripes never contend for a slot. the
+    // stripes are separate blocks of the array, so the slots of one
+    // counter don't share a cache line either. the value of a
+    // counter is the sum over all stripes.
+    static final class Counters {
+	private final AtomicLongArray counts;
+	private final int size;
+	private final int stripe_mask;
+
+	Counters(int size, int stripes) {
+	    int n = 1;
+	    while (n < stripes) n <<= 1;
+	    this.size = size;
+	    stripe_mask = n - 1;
+	    counts = new AtomicLongArray(n * size);
+	}
+
+	void increment(int i) {
+	    int stripe = (int) Thread.currentThread().getId() & stripe_mask;
+	    counts.getAndIncrement(stripe * size + i);
+	}
+
+	// add n to counter i (in the first stripe)
+	void add(int i, long n) {
+	    counts.getAndAdd(i, n);
+	}
+
+	long get(int i) {
+	    long sum = 0;
+	    for (int s = 0; s <= stripe_mask; s++)
+		sum += counts.get(s * size + i);
+	    return sum;
+	}
+    }
+
+    // ---------------------------------------------------------------
+    // an immutable inline cache of the receiver classes seen at one
+    // call site, and the annotated edge that each of them maps to
+    // (-1 for classes that CHA didn't predict). a site starts out
+    // monomorphic, grows up to POLYMORPHIC_LIMIT classes, and then
+    // becomes MEGAMORPHIC, after which receivers are always looked
+    // up by name. growing the cache creates a new object, so other
+    // threads always see a consistent one through the final fields.
+    static final class ReceiverCache {
+	static final int POLYMORPHIC_LIMIT = 4;
+	static final ReceiverCache MEGAMORPHIC =
+	    new ReceiverCache(new Class<?>[] { null }, new int[] { -1 });
+
+	final Class<?> first;
+	final int first_entry;
+	final Class<?>[] classes;
+	final int[] entries;
+
+	ReceiverCache(Class<?> cls, int entry) {
+	    this(new Class<?>[] { cls }, new int[] { entry });
+	}
+
+	private ReceiverCache(Class<?>[] classes, int[] entries) {
+	    this.classes = classes;
+	    this.entries = entries;
+	    first = classes[0];
+	    first_entry = entries[0];
+	}
+
+	ReceiverCache add(Class<?> cls, int entry) {
+	    int n = classes.length;
+	    if (n == POLYMORPHIC_LIMIT) return MEGAMORPHIC;
+
+	    Class<?>[] c = Arrays.copyOf(classes, n + 1);
+	    int[] e = Arrays.copyOf(entries, n + 1);
+	    c[n] = cls;
+	    e[n] = entry;
+	    return new ReceiverCache(c, e);
+	}
+    }
+
+    // ---------------------------------------------------------------
+    // the "full" event log: a bounded multi-producer ring buffer of
+    // encoded events, drained by a single background thread that
+    // formats them and writes them to the trace file. producers
+    // claim a slot with one CAS on 'tail' and publish it through the
+    // slot's sequence number; they never block. each event is a long
+    // holding its kind and two ints (method id or site id, and the
+    // annotated edge of a receiver call plus one, or 0 if the
+    // receiver class is not one that CHA predicted).
+    static final class EventLog implements Runnable {
+	static final int METHOD = 1;
+	static final int CALL = 2;
+	static final int RECEIVER_CALL = 3;
+
+	private final long[] slots;
+	private final AtomicLongArray sequence;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	// only used by the drain thread
+	private long head = 0;
+	private final BufferedWriter out;
+
+	private volatile boolean running = true;
+	private final Thread thread;
+
+	EventLog(String file, int capacity) throws IOException {
+	    int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+	    slots = new long[size];
+	    sequence = new AtomicLongArray(size);
+	    for (int i = 0; i < size; i++) sequence.set(i, i);
+	    mask = size - 1;
+
+	    out = new BufferedWriter(new FileWriter(file), 1 << 16);
+	    thread = new Thread(this, "RuntimeTracker-log");
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+
+	void add(int kind, int a, int b) {
+	    long event = ((long) kind << 62) | ((long) a << 31) | b;
+	    long pos = tail.get();
+	    while (true) {
+		int idx = (int) pos & mask;
+		long dif = sequence.get(idx) - pos;
+		if (dif == 0) {
+		    if (tail.compareAndSet(pos, pos + 1)) {
+			slots[idx] = event;
+			sequence.lazySet(idx, pos + 1);
+			return;
+		    }
+		} else if (dif < 0) {
+		    // the buffer is full; drop rather than wait
+		    dropped.incrementAndGet();
+		    return;
+		}
+		pos = tail.get();
+	    }
+	}
+
+	// write out everything that is in the buffer right now.
+	// returns false if there was nothing to write.
+	private boolean drain() throws IOException {
+	    boolean any = false;
+	    while (true) {
+		int idx = (int) head & mask;
+		if (sequence.get(idx) != head + 1) return any;
+		long event = slots[idx];
+		sequence.lazySet(idx, head + mask + 1);
+		head++;
+		write(event);
+		any = true;
+	    }
+	}
+
+	private void write(long event) throws IOException {
+	    int kind = (int) (event >>> 62);
+	    int a = (int) ((event >>> 31) & 0x7fffffff);
+	    int b = (int) (event & 0x7fffffff);
+
+	    if (kind == METHOD) {
+		out.write("Method: " + a);
+	    } else if (kind == CALL) {
+		out.write("Call site: " + site_names[a]);
+	    } else {
+		String name = (b == 0) ? "?" : annotated_class[b - 1];
+		out.write("Call site: " + site_names[a] + "," + name);
+	    }
+	    out.newLine();
+	}
+
+	public void run() {
+	    try {
+		while (running)
+		    if (!drain()) LockSupport.parkNanos(1000000);
+		drain();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+
+	// stop the drain thread once it has written all events
+	void close() {
+	    running = false;
+	    try {
+		thread.join();
+		if (dropped.get() != 0) {
+		    out.write("Dropped events: " + dropped.get());
+		    out.newLine();
+		}
+		out.close();
+	    } catch (Exception e) {
+		e.printStackTrace();
+	    }
+	}
     }
 
     // -------------------------------------------
@@ -0,0 +1,273 @@
+import soot.*;
+import soot.baf.*;
+import soot.jimple.*;
+import soot.util.*;
+import java.io.*;
+import java.lang.instrument.*;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.zip.*;
+
+// a java agent that inserts the probes of MyTransformer when the
+// classes are loaded, instead of rewriting all class files with
+// Instrumenter first:
+//
+//   java -javaagent:tracker.jar=<dir> -cp <classes>:<tool classpath> Main
+//
+// where <dir> is the output directory of ChaMain (with "rmethods" and
+// "sites", or "cha.bin"). tracker.jar has the manifest
+// src/TrackerAgent.mf, with the line "Premain-Class: TrackerAgent":
+//
+//   javac -cp <soot classpath> -d classes src/*.java
+//   jar cfm tracker.jar src/TrackerAgent.mf -C classes .
+//
+// the program still calls RuntimeTracker.start(<dir>), as with
+// classes instrumented by Instrumenter (end() is called by a shutdown
+// hook if the program doesn't call it).
+//
+// only the classes that have a method with an id are instrumented;
+// every other class (in particular the classes of the JDK, of Soot
+// and of the tracker) is left as it is, for the cost of a table
+// lookup. Soot reads the class from the bytes the JVM is loading,
+// which are written to a temporary directory at the front of the Soot
+// classpath; the classes it refers to are read from the rest of the
+// Soot classpath, which is -Dagent.soot.classpath if set, otherwise
+// the classpath of the JVM followed by its boot classpath. the class
+// is written back through Baf and Jasmin as soot.Main does. a class
+// that Soot can't process is loaded without probes, with a warning;
+// so is a class of a class loader other than the system class loader
+// (and its parents) when its supertypes are not on the Soot
+// classpath.
+//
+// Soot has one SootClass per name, for the whole run. a class that
+// Soot already read from the Soot classpath (e.g. as the supertype of
+// a class instrumented before) is only instrumented if the bytes being
+// loaded are that same class file; a class that was instrumented
+// before, e.g. for another class loader, gets the same instrumented
+// class file again if its bytes are the same. otherwise the class is
+// loaded without probes, with a warning.
+//
+// the probes are the ones of Instrumenter, including the guards of
+// -Dinstrument.guards=true, but not minimal probes: the implications
+// of file "implied" would only be known after RuntimeTracker.start()
+// has read it.
+
+public class TrackerAgent implements ClassFileTransformer {
+
+    // the names of the classes that have a method with an id
+    private HashSet classes = new HashSet();
+
+    // whether Soot has been set up
+    private boolean initialized = false;
+
+    // the directory at the front of the Soot classpath, where the
+    // class files being loaded are written for Soot to read
+    private File class_dir;
+
+    // the rest of the Soot classpath
+    private String soot_classpath;
+
+    // the class loaders that were already warned about
+    private HashSet warned_loaders = new HashSet();
+
+    // the classes processed so far: name -> { the class file as it
+    // was loaded, the instrumented class file (null if there was an
+    // error) }
+    private HashMap processed = new HashMap();
+
+    // set while a class is processed. Soot may cause classes to be
+    // loaded by the same thread (its own classes), which must not
+    // reach Soot again.
+    private boolean busy = false;
+
+    // ------------------------------------------------------------
+    public static void premain(String args, Instrumentation inst) {
+	if (args == null || args.length() == 0) {
+	    System.err.println("TrackerAgent: usage: -javaagent:<jar>=<dir>");
+	    return;
+	}
+	if (Boolean.getBoolean("instrument.minimal"))
+	    System.err.println("TrackerAgent: -Dinstrument.minimal=true is " +
+			       "ignored at load time");
+	MyTransformer.setMinimal(false);
+
+	Instrumenter.loadInfoFrom(args);
+	inst.addTransformer(new TrackerAgent(Instrumenter.id_info.keySet()));
+    }
+
+    // 'methods' are the names of the methods with ids, as in file
+    // "rmethods": "<class: type name(params)>"
+    TrackerAgent(Collection methods) {
+	for (Iterator it = methods.iterator(); it.hasNext();) {
+	    String m = (String) it.next();
+	    classes.add(m.substring(1, m.indexOf(':')));
+	}
+    }
+
+    // ------------------------------------------------------------
+    // returns the instrumented class file, or null to leave the
+    // class as it is. Soot is not thread-safe, so one class is
+    // processed at a time.
+    public synchronized byte[] transform(ClassLoader loader, String class_name,
+					 Class redefined, ProtectionDomain domain,
+					 byte[] bytes) {
+	if (busy || redefined != null || class_name == null) return null;
+	String name = class_name.replace('/', '.');
+	if (!classes.contains(name) || name.startsWith("java.") ||
+	    name.equals("RuntimeTracker") || name.startsWith("RuntimeTracker$"))
+	    return null;
+
+	// the SootClass of a class that was processed before can't be
+	// processed again
+	byte[][] done = (byte[][]) processed.get(name);
+	if (done != null) {
+	    if (Arrays.equals(done[0], bytes)) return done[1];
+	    System.err.println("TrackerAgent: " + name + " was already instrumented " +
+			       "from another class file; loaded without probes");
+	    return null;
+	}
+
+	busy = true;
+	byte[] result = null;
+	try {
+	    if (!isSystemLoader(loader) && warned_loaders.add(loader))
+		System.err.println("TrackerAgent: " + name + " is loaded by " + loader +
+				   "; the classes it refers to are read from the " +
+				   "Soot classpath");
+	    result = instrument(name, bytes);
+	} catch (Throwable e) {
+	    System.err.println("TrackerAgent: cannot instrument " + name + ": " + e);
+	} finally {
+	    busy = false;
+	}
+	processed.put(name, new byte[][] { bytes, result });
+	return result;
+    }
+
+    // whether 'loader' is the system class loader or one of its
+    // parents (null is the boot loader)
+    private static boolean isSystemLoader(ClassLoader loader) {
+	for (ClassLoader l = ClassLoader.getSystemClassLoader(); l != null; l = l.getParent())
+	    if (l == loader) return true;
+	return loader == null;
+    }
+
+    // ------------------------------------------------------------
+    private void initialize() throws IOException {
+	String cp = System.getProperty("agent.soot.classpath");
+	if (cp == null) {
+	    cp = System.getProperty("java.class.path");
+	    String boot = System.getProperty("sun.boot.class.path");
+	    if (boot != null) cp += File.pathSeparator + boot;
+	}
+
+	class_dir = File.createTempFile("tracker", ".classes");
+	class_dir.delete();
+	if (!class_dir.mkdir())
+	    throw new IOException("cannot create directory " + class_dir);
+	class_dir.deleteOnExit();
+	soot_classpath = cp;
+	cp = class_dir.getPath() + File.pathSeparator + cp;
+
+	// as in Instrumenter and Loader
+	soot.Main.setReservedNames();
+	Scene.v().setSootClassPath(cp);
+	Scene.v().getPack("jtp").add(new Transform("jtp.cis788", MyTransformer.v()));
+	Scene.v().loadClassAndSupport("RuntimeTracker");
+	initialized = true;
+    }
+
+    // run the body packs with MyTransformer on the methods of class
+    // 'name', read from its class file 'bytes', and return its new
+    // class file, or null if Soot already has another version of the
+    // class
+    private byte[] instrument(String name, byte[] bytes) throws IOException {
+	if (!initialized) initialize();
+	if (Scene.v().containsClass(name) &&
+	    !Arrays.equals(bytes, classpathFile(name))) {
+	    System.err.println("TrackerAgent: " + name + " was read from the Soot " +
+			       "classpath before, and is loaded from another class " +
+			       "file; loaded without probes");
+	    return null;
+	}
+	writeClassFile(name, bytes);
+
+	SootClass c = Scene.v().loadClassAndSupport(name);
+	c.setApplicationClass();
+
+	// first all Jimple bodies, since MyTransformer may add a
+	// field to the class, then their Baf form
+	List methods = new ArrayList(c.getMethods());
+	for (Iterator it = methods.iterator(); it.hasNext();) {
+	    SootMethod m = (SootMethod) it.next();
+	    if (m.isConcrete())
+		Scene.v().getPack("jtp").apply(m.retrieveActiveBody());
+	}
+	for (Iterator it = methods.iterator(); it.hasNext();) {
+	    SootMethod m = (SootMethod) it.next();
+	    if (m.isConcrete())
+		m.setActiveBody(Baf.v().newBody((JimpleBody) m.getActiveBody()));
+	}
+
+	// Jasmin assembles the class when the stream is closed
+	ByteArrayOutputStream result = new ByteArrayOutputStream();
+	JasminOutputStream stream = new JasminOutputStream(result);
+	PrintWriter out = new PrintWriter(new OutputStreamWriter(stream));
+	new soot.baf.JasminClass(c).print(out);
+	out.flush();
+	stream.close();
+	return result.toByteArray();
+    }
+
+    // the class file of class 'name' on the Soot classpath (without
+    // class_dir), or null if there is none
+    private byte[] classpathFile(String name) throws IOException {
+	String file = name.replace('.', '/') + ".class";
+	StringTokenizer entries = new StringTokenizer(soot_classpath, File.pathSeparator);
+	while (entries.hasMoreTokens()) {
+	    File entry = new File(entries.nextToken());
+	    if (entry.isDirectory()) {
+		File f = new File(entry, file.replace('/', File.separatorChar));
+		if (f.isFile()) return readAll(new FileInputStream(f));
+	    } else if (entry.isFile()) {
+		ZipFile zip = new ZipFile(entry);
+		try {
+		    ZipEntry e = zip.getEntry(file);
+		    if (e != null) return readAll(zip.getInputStream(e));
+		} finally {
+		    zip.close();
+		}
+	    }
+	}
+	return null;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+	ByteArrayOutputStream result = new ByteArrayOutputStream();
+	byte[] buffer = new byte[8192];
+	try {
+	    int n;
+	    while ((n = in.read(buffer)) != -1) result.write(buffer, 0, n);
+	} finally {
+	    in.close();
+	}
+	return result.toByteArray();
+    }
+
+    // write the class file of class 'name' to class_dir, where Soot
+    // finds it before any other class file of that name
+    private void writeClassFile(String name, byte[] bytes) throws IOException {
+	File f = new File(class_dir, name.replace('.', File.separatorChar) + ".class");
+	ArrayList dirs = new ArrayList();
+	for (File d = f.getParentFile(); !d.equals(class_dir); d = d.getParentFile())
+	    dirs.add(0, d);
+	for (Iterator it = dirs.iterator(); it.hasNext();) {
+	    File d = (File) it.next();
+	    if (d.mkdir()) d.deleteOnExit();
+	}
+	OutputStream out = new FileOutputStream(f);
+	out.write(bytes);
+	out.close();
+	f.deleteOnExit();
+    }
+}